@@ -0,0 +1,131 @@
+package benchmark;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+// The documents the benchmarks run on, one of each kind the workers see. They are generated with a
+// fixed seed the first time they are needed, so every run measures the same bytes:
+// text-heavy  20 pages of dense text
+// scanned     one A4 page that is a single 300 DPI grayscale JPEG, as a scanner produces it
+// many-page   300 short pages, the cost of the page tree and of loading
+// malformed   text-heavy cut off before its cross-reference table, the parser has to repair it
+public class Corpus {
+
+    private static final long SEED = 20240101L;
+
+    private Corpus() {
+    }
+
+    public static File directory() {
+        return new File(System.getProperty("corpus.dir", "target/corpus"));
+    }
+
+    public static synchronized File get(String name) throws IOException {
+        File file = new File(directory(), name + ".pdf");
+        if (!file.exists()) {
+            Files.createDirectories(directory().toPath());
+            Files.write(file.toPath(), generate(name));
+        }
+        return file;
+    }
+
+    public static byte[] read(String name) throws IOException {
+        return Files.readAllBytes(get(name).toPath());
+    }
+
+    private static byte[] generate(String name) throws IOException {
+        switch (name) {
+            case "text-heavy":
+                return textDocument(20, 60);
+            case "scanned":
+                return scannedDocument();
+            case "many-page":
+                return textDocument(300, 5);
+            case "malformed":
+                byte[] valid = textDocument(20, 60);
+                return Arrays.copyOf(valid, valid.length * 3 / 5);
+            default:
+                throw new IllegalArgumentException("Unknown corpus document " + name);
+        }
+    }
+
+    private static byte[] textDocument(int pages, int linesPerPage) throws IOException {
+        Random random = new Random(SEED);
+        PDType1Font font = new PDType1Font(Standard14Fonts.FontName.HELVETICA);
+        try (PDDocument document = new PDDocument()) {
+            for (int p = 0; p < pages; p++) {
+                PDPage page = new PDPage(PDRectangle.A4);
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(font, 10);
+                    content.setLeading(12);
+                    content.newLineAtOffset(50, 790);
+                    for (int l = 0; l < linesPerPage; l++) {
+                        content.showText(sentence(random));
+                        content.newLine();
+                    }
+                    content.endText();
+                }
+            }
+            return save(document);
+        }
+    }
+
+    private static byte[] scannedDocument() throws IOException {
+        Random random = new Random(SEED);
+        // A4 at 300 DPI: light paper noise with dark bands where the lines of text were
+        int width = 2480;
+        int height = 3508;
+        BufferedImage scan = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < height; y++) {
+            boolean line = (y / 25) % 2 == 1 && y > 200 && y < height - 200;
+            for (int x = 0; x < width; x++) {
+                int gray = line && x > 150 && x < width - 150 && random.nextInt(3) == 0 ? 40 : 230 + random.nextInt(20);
+                scan.getRaster().setSample(x, y, 0, gray);
+            }
+        }
+
+        try (PDDocument document = new PDDocument()) {
+            PDPage page = new PDPage(PDRectangle.A4);
+            document.addPage(page);
+            PDImageXObject image = JPEGFactory.createFromImage(document, scan, 0.75f);
+            try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                content.drawImage(image, 0, 0, PDRectangle.A4.getWidth(), PDRectangle.A4.getHeight());
+            }
+            return save(document);
+        }
+    }
+
+    private static final String[] WORDS = {"the", "manager", "worker", "queue", "document", "page", "render",
+            "text", "result", "summary", "bucket", "message", "conversion", "latency", "throughput", "of", "and"};
+
+    private static String sentence(Random random) {
+        StringBuilder sentence = new StringBuilder();
+        while (sentence.length() < 90) {
+            sentence.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return sentence.toString();
+    }
+
+    private static byte[] save(PDDocument document) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        document.save(out);
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,49 @@
+package benchmark;
+
+import conversion.PdfConverter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Parsing a PDF, the first step of every task. A malformed document is repaired or rejected here
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadBenchmark {
+
+    @Param({"text-heavy", "scanned", "many-page", "malformed"})
+    public String document;
+
+    private byte[] content;
+
+    @Setup
+    public void setup() throws IOException {
+        content = Corpus.read(document);
+    }
+
+    @Benchmark
+    public Object load() {
+        try (PDDocument loaded = PdfConverter.load(content)) {
+            return loaded.getNumberOfPages();
+        } catch (IOException e) {
+            // The worker reports this as the task's result, measuring how fast it gets there
+            return e;
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package benchmark;
+
+import conversion.PdfConverter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// ToImage split in its two steps: rendering the first page and encoding it as PNG.
+// The worker renders at PdfConverter.IMAGE_DPI, the lower resolutions show how the cost scales
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderBenchmark {
+
+    @Param({"text-heavy", "scanned", "many-page"})
+    public String document;
+
+    @Param({"72", "150", "300"})
+    public float dpi;
+
+    private PDDocument loaded;
+    private BufferedImage rendered;
+
+    @Setup
+    public void setup() throws IOException {
+        loaded = PdfConverter.load(Corpus.get(document));
+        rendered = PdfConverter.renderFirstPage(loaded, dpi);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        loaded.close();
+    }
+
+    @Benchmark
+    public BufferedImage render() throws IOException {
+        return PdfConverter.renderFirstPage(loaded, dpi);
+    }
+
+    @Benchmark
+    public byte[] encodePng() throws IOException {
+        return PdfConverter.encodePng(rendered);
+    }
+
+}
@@ -0,0 +1,55 @@
+package benchmark;
+
+import conversion.PdfConverter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// ToText and ToHTML, both strip the text of every page and differ only in the wrapping
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TextBenchmark {
+
+    @Param({"text-heavy", "scanned", "many-page"})
+    public String document;
+
+    private PDDocument loaded;
+
+    @Setup
+    public void setup() throws IOException {
+        loaded = PdfConverter.load(Corpus.get(document));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        loaded.close();
+    }
+
+    @Benchmark
+    public String extractText() throws IOException {
+        return PdfConverter.extractText(loaded);
+    }
+
+    @Benchmark
+    public String toHtml() throws IOException {
+        return PdfConverter.toHtml(PdfConverter.extractText(loaded));
+    }
+
+}
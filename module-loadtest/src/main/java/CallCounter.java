@@ -0,0 +1,27 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts the AWS API calls the stand-ins serve, by service and operation, as the real client would make them
+public class CallCounter {
+
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+
+    public void count(String service, String operation) {
+        count(service, operation, 1);
+    }
+
+    public void count(String service, String operation, int times) {
+        calls.computeIfAbsent(service + "." + operation, k -> new LongAdder()).add(times);
+    }
+
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : calls.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().sum());
+        }
+        return snapshot;
+    }
+
+}
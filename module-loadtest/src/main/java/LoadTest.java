@@ -0,0 +1,243 @@
+import operations.Metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Drives the whole flow, PdfConversionClient -> Manager -> Worker, in one JVM against local stand-ins:
+// LocalS3, LocalSQS and LocalEC2, whose instances run the manager and the workers in-process, and a
+// PdfServer in place of the PDF links. The conversions run for real on this machine's CPUs, shared by
+// all workers. Reports job latency, throughput, AWS calls per task and worker utilization, to size
+// n, MAX_WORKERS (-Dmanager.maxWorkers) and the manager's thread pool (-Dmanager.threads) from data.
+// Everything the components print goes to the log file, the report to standard output:
+//     java -jar target/loadtest.jar --tenants 4 --jobs 2 --lines 200 --latency-ms 200 --failure-rate 0.05
+// The manager's limits come from -Dmanager.maxWorkers and -Dmanager.threads (or --max-workers and
+// --manager-threads), the log of every instance goes to loadtest.log unless --log says otherwise
+public class LoadTest {
+
+    private int tenants = 2;
+    private int jobsPerTenant = 3;
+    private int linesPerJob = 100;
+    // Distinct PDFs the lines pick from, fewer than the lines means duplicate lines
+    private int documents = 1000;
+    private int docsPerWorker = 10;
+    private int maxWorkers = 8;
+    private int managerThreads = 10;
+    private long latencyMillis = 50;
+    private long jitterMillis = 50;
+    private double failureRate = 0.02;
+    private long bootMillis = 0;
+    private int pages = 2;
+    private String[] actions = {"ToImage", "ToText", "ToHTML"};
+    private long submitIntervalMillis = 0;
+    private long timeoutSeconds = 30 * 60;
+    private String logFile = "loadtest.log";
+    // The metrics of the manager and the workers, in one registry since they share the JVM
+    private String metricsFile = "loadtest.prom";
+    // Spans of the whole run, every process writes to the same file. null for no tracing
+    private String traceFile = null;
+
+    private final AtomicLong results = new AtomicLong(0);
+    private final AtomicLong busyMillis = new AtomicLong(0);
+
+    public static void main(String[] args) throws Exception {
+        LoadTest loadTest = new LoadTest();
+        loadTest.parse(args);
+
+        PrintStream console = System.err;
+        int exitCode = 1;
+        try {
+            exitCode = loadTest.run();
+        } catch (Exception e) {
+            e.printStackTrace(console);
+        }
+        // The manager's pools and the PDF server are not daemon threads
+        System.exit(exitCode);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--tenants": tenants = Integer.parseInt(value); break;
+                case "--jobs": jobsPerTenant = Integer.parseInt(value); break;
+                case "--lines": linesPerJob = Integer.parseInt(value); break;
+                case "--documents": documents = Integer.parseInt(value); break;
+                case "--n": docsPerWorker = Integer.parseInt(value); break;
+                case "--max-workers": maxWorkers = Integer.parseInt(value); break;
+                case "--manager-threads": managerThreads = Integer.parseInt(value); break;
+                case "--latency-ms": latencyMillis = Long.parseLong(value); break;
+                case "--jitter-ms": jitterMillis = Long.parseLong(value); break;
+                case "--failure-rate": failureRate = Double.parseDouble(value); break;
+                case "--boot-ms": bootMillis = Long.parseLong(value); break;
+                case "--pages": pages = Integer.parseInt(value); break;
+                case "--actions": actions = value.split(","); break;
+                case "--submit-interval-ms": submitIntervalMillis = Long.parseLong(value); break;
+                case "--timeout-s": timeoutSeconds = Long.parseLong(value); break;
+                case "--log": logFile = value; break;
+                case "--metrics": metricsFile = value; break;
+                case "--trace": traceFile = value; break;
+                default:
+                    throw new IllegalArgumentException("Usage: LoadTest [--tenants 2] [--jobs 3] [--lines 100] [--documents 1000] [--n 10]"
+                            + " [--max-workers 8] [--manager-threads 10] [--latency-ms 50] [--jitter-ms 50] [--failure-rate 0.02]"
+                            + " [--boot-ms 0] [--pages 2] [--actions ToImage,ToText,ToHTML] [--submit-interval-ms 0] [--timeout-s 1800] [--log loadtest.log]"
+                            + " [--metrics loadtest.prom] [--trace <file>]");
+            }
+            i++;
+        }
+    }
+
+    private int run() throws Exception {
+        // Read by Manager when its class is loaded, on the first manager instance
+        System.setProperty("manager.maxWorkers", String.valueOf(maxWorkers));
+        System.setProperty("manager.threads", String.valueOf(managerThreads));
+
+        PrintStream report = System.out;
+        PrintStream log = new PrintStream(new FileOutputStream(logFile), true, "UTF-8");
+        System.setOut(log);
+        System.setErr(log);
+
+        PdfServer pdfServer = new PdfServer(pages, latencyMillis, jitterMillis, failureRate);
+        CallCounter calls = new CallCounter();
+        LocalS3 s3 = new LocalS3(calls);
+        LocalSQS sqs = new LocalSQS(calls);
+        LocalEC2 ec2 = new LocalEC2(s3, sqs, calls, bootMillis);
+
+        // <jobId>\t<taskId>\t<elapsedMillis>\t<action>\t<url>\t<output> on a wmQueue is a worker's result
+        sqs.onSend((queue, body) -> {
+            String[] parts = body.split("\t");
+            if (queue.startsWith("wm-queue-") && parts.length == 6 && !parts[0].equals("heartbeat") && parts[2].matches("\\d+")) {
+                results.incrementAndGet();
+                busyMillis.addAndGet(Long.parseLong(parts[2]));
+            }
+        });
+
+        File workDirectory = Files.createTempDirectory("loadtest").toFile();
+        // The client publishes the jars, the local instances run the classes on the classpath instead
+        File jars = new File(workDirectory, "jars");
+        jars.mkdirs();
+        Files.write(new File(jars, "manager.jar").toPath(), "manager".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(jars, "worker.jar").toPath(), "worker".getBytes(StandardCharsets.UTF_8));
+
+        List<PdfConversionClient> clients = new ArrayList<>();
+        for (int t = 0; t < tenants; t++) {
+            PdfConversionClient.Config config = new PdfConversionClient.Config()
+                    .docsPerWorker(docsPerWorker)
+                    .progressIntervalSeconds(0)
+                    .jarsDirectory(jars.getPath())
+                    // In LocalS3, not the artifact bucket of whoever runs the test
+                    .artifactBucket("artifacts-loadtest")
+                    .traceFile(traceFile);
+            clients.add(new PdfConversionClient(config, s3, sqs.view(), ec2));
+        }
+
+        Random random = new Random(42);
+        List<CompletableFuture<Long>> latencies = new ArrayList<>();
+        long startTime = System.currentTimeMillis();
+        for (int j = 0; j < jobsPerTenant; j++) {
+            for (int t = 0; t < tenants; t++) {
+                File input = new File(workDirectory, "input-" + t + "-" + j + ".txt");
+                try (PrintWriter writer = new PrintWriter(input, "UTF-8")) {
+                    for (int l = 0; l < linesPerJob; l++) {
+                        writer.println(actions[l % actions.length] + "\t" + pdfServer.url(random.nextInt(documents)));
+                    }
+                }
+
+                long submitted = System.currentTimeMillis();
+                latencies.add(clients.get(t).submit(input, new PdfConversionClient.JobOptions())
+                        .thenApply(result -> System.currentTimeMillis() - submitted));
+                if (submitIntervalMillis > 0)
+                    Thread.sleep(submitIntervalMillis);
+            }
+        }
+
+        List<Long> completed = new ArrayList<>();
+        int failedJobs = 0;
+        long deadline = startTime + timeoutSeconds * 1000;
+        for (CompletableFuture<Long> latency : latencies) {
+            try {
+                completed.add(latency.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                failedJobs++;
+            } catch (Exception e) {
+                e.printStackTrace();
+                failedJobs++;
+            }
+        }
+        long wallMillis = System.currentTimeMillis() - startTime;
+        long workerMillis = ec2.getWorkerMillis();
+        Map<String, Long> callCounts = calls.snapshot();
+
+        try {
+            clients.get(0).terminateManager().get(2, TimeUnit.MINUTES);
+        } catch (Exception e) {
+            System.err.println("Manager did not confirm termination: " + e);
+        }
+        for (PdfConversionClient client : clients) {
+            client.close();
+        }
+        pdfServer.stop();
+
+        long tasks = (long) tenants * jobsPerTenant * linesPerJob;
+        report.println(String.format("Load test: %d tenants x %d jobs x %d lines, n=%d, max workers %d, manager threads %d",
+                tenants, jobsPerTenant, linesPerJob, docsPerWorker, maxWorkers, managerThreads));
+        report.println(String.format("PDFs: %d distinct, %d pages, %dms + %dms mean jitter, %.1f%% broken links, boot %dms",
+                documents, pages, latencyMillis, jitterMillis, failureRate * 100, bootMillis));
+        report.println();
+        report.println(String.format("Jobs:        %d completed, %d failed or timed out", completed.size(), failedJobs));
+        report.println(String.format("Job latency: p50 %s  p90 %s  p99 %s  max %s",
+                seconds(percentile(completed, 0.5)), seconds(percentile(completed, 0.9)),
+                seconds(percentile(completed, 0.99)), seconds(percentile(completed, 1.0))));
+        report.println(String.format("Throughput:  %d tasks in %s, %.2f tasks/s, %d worker results",
+                tasks, seconds(wallMillis), tasks * 1000.0 / wallMillis, results.get()));
+        report.println(String.format("Workers:     %d launched, %d at peak, %.1f%% utilized (%s busy of %s running)",
+                ec2.getLaunchedWorkers(), ec2.getPeakWorkers(), workerMillis == 0 ? 0 : 100.0 * busyMillis.get() / workerMillis,
+                seconds(busyMillis.get()), seconds(workerMillis)));
+        report.println(String.format("PDF server:  %d GET, %d HEAD, %d answered 404",
+                pdfServer.getGets(), pdfServer.getHeads(), pdfServer.getFailures()));
+        report.println();
+        report.println(String.format("AWS calls until the last job completed (per task): sqs %.2f, s3 %.2f, ec2 %.3f",
+                perTask(callCounts, "sqs.", tasks), perTask(callCounts, "s3.", tasks), perTask(callCounts, "ec2.", tasks)));
+        for (Map.Entry<String, Long> entry : callCounts.entrySet()) {
+            report.println(String.format("  %-32s %10d  %8.3f", entry.getKey(), entry.getValue(), entry.getValue() / (double) tasks));
+        }
+        report.println();
+        Files.write(new File(metricsFile).toPath(), Metrics.scrape().getBytes(StandardCharsets.UTF_8));
+        report.println("Log: " + logFile + ", metrics: " + metricsFile + (traceFile == null ? "" : ", traces: " + traceFile));
+        return failedJobs == 0 ? 0 : 1;
+    }
+
+    private static long percentile(List<Long> values, double percentile) {
+        if (values.isEmpty())
+            return 0;
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(Math.max(0, (int) Math.ceil(percentile * sorted.size()) - 1));
+    }
+
+    private static double perTask(Map<String, Long> callCounts, String prefix, long tasks) {
+        long total = 0;
+        for (Map.Entry<String, Long> entry : callCounts.entrySet()) {
+            if (entry.getKey().startsWith(prefix))
+                total += entry.getValue();
+        }
+        return total / (double) tasks;
+    }
+
+    private static String seconds(long millis) {
+        return String.format("%.1fs", millis / 1000.0);
+    }
+
+}
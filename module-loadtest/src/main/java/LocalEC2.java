@@ -0,0 +1,191 @@
+import operations.EC2Operations;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.Tag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// EC2 in-process: an instance is a thread that runs the java command line of its user data, a manager
+// or a worker on the local stand-ins. The jars the script copies are not needed, the classes are on the
+// classpath. Terminating a worker stops it at its next receive, as if its instance went away
+public class LocalEC2 extends EC2Operations {
+
+    private static class LocalInstance {
+        private final String id;
+        private final List<Tag> tags;
+        private final long launchedAt;
+        private volatile long stoppedAt;
+        private volatile boolean terminated;
+        private volatile Worker worker;
+
+        private LocalInstance(String id, List<Tag> tags) {
+            this.id = id;
+            this.tags = tags;
+            this.launchedAt = System.currentTimeMillis();
+        }
+
+        private boolean hasTag(String key, String value) {
+            for (Tag tag : tags) {
+                if (tag.key().equals(key) && tag.value().equals(value))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private final LocalS3 s3;
+    private final LocalSQS sqs;
+    private final CallCounter calls;
+    // Boot time of an instance before its java command starts
+    private final long bootMillis;
+
+    private final Map<String, LocalInstance> instances = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final AtomicInteger runningWorkers = new AtomicInteger(0);
+    private final AtomicInteger peakWorkers = new AtomicInteger(0);
+
+    public LocalEC2(LocalS3 s3, LocalSQS sqs, CallCounter calls, long bootMillis) {
+        // The SDK client of the superclass is built but never called
+        super(Region.US_EAST_1);
+        this.s3 = s3;
+        this.sqs = sqs;
+        this.calls = calls;
+        this.bootMillis = bootMillis;
+    }
+
+    @Override
+    public String[] runInstances(String script, int min, int max, List<Tag> tags) {
+        calls.count("ec2", "RunInstances");
+        String[] instanceIds = new String[max];
+        for (int i = 0; i < max; i++) {
+            LocalInstance instance = new LocalInstance(String.format("i-%017x", nextId.getAndIncrement()), tags);
+            instances.put(instance.id, instance);
+            instanceIds[i] = instance.id;
+
+            Thread thread = new Thread(() -> boot(instance, script), instance.id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return instanceIds;
+    }
+
+    private void boot(LocalInstance instance, String script) {
+        try {
+            Thread.sleep(bootMillis);
+        } catch (InterruptedException e) {
+            return;
+        }
+        if (instance.terminated)
+            return;
+
+        // The last line of the user data is java [options] -jar <name>.jar <args>
+        String[] lines = script.trim().split("\n");
+        List<String> command = Arrays.asList(lines[lines.length - 1].trim().split("\\s+"));
+        int jar = command.indexOf("-jar") + 1;
+        String[] args = command.subList(jar + 1, command.size()).toArray(new String[0]);
+
+        try {
+            if (command.get(jar).equals("manager.jar")) {
+                Manager.fromArgs(args, s3, sqs.view(), this).run();
+            } else if (command.get(jar).equals("worker.jar")) {
+                Worker worker = new Worker(instance.id, Integer.parseInt(args[0]), args[1], args[2], s3, sqs.view());
+                instance.worker = worker;
+                peakWorkers.accumulateAndGet(runningWorkers.incrementAndGet(), Math::max);
+                try {
+                    worker.run();
+                } finally {
+                    runningWorkers.decrementAndGet();
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Instance " + instance.id + " failed: " + e);
+            e.printStackTrace();
+        } finally {
+            if (instance.stoppedAt == 0)
+                instance.stoppedAt = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public void terminateInstance(String instanceId) {
+        terminateInstances(Arrays.asList(instanceId));
+    }
+
+    @Override
+    public void terminateInstances(Collection<String> instanceIds) {
+        calls.count("ec2", "TerminateInstances", (instanceIds.size() + 999) / 1000);
+        for (String instanceId : instanceIds) {
+            LocalInstance instance = instances.get(instanceId);
+            if (instance == null || instance.terminated)
+                continue;
+            instance.terminated = true;
+            if (instance.stoppedAt == 0)
+                instance.stoppedAt = System.currentTimeMillis();
+            if (instance.worker != null)
+                instance.worker.stop();
+        }
+    }
+
+    @Override
+    public String[] getAllInstances() {
+        return Arrays.stream(getAllInstanceObjects()).map(Instance::instanceId).toArray(String[]::new);
+    }
+
+    @Override
+    public String[] getAllInstancesWithTag(String key, String value) {
+        calls.count("ec2", "DescribeInstances");
+        List<String> instanceIds = new ArrayList<>();
+        for (LocalInstance instance : instances.values()) {
+            if (!instance.terminated && instance.hasTag(key, value))
+                instanceIds.add(instance.id);
+        }
+        return instanceIds.toArray(new String[0]);
+    }
+
+    @Override
+    public Instance[] getAllInstanceObjects() {
+        calls.count("ec2", "DescribeInstances");
+        List<Instance> described = new ArrayList<>();
+        for (LocalInstance instance : instances.values()) {
+            InstanceStateName state = instance.terminated ? InstanceStateName.TERMINATED : InstanceStateName.RUNNING;
+            described.add(Instance.builder().instanceId(instance.id).tags(instance.tags)
+                    .state(InstanceState.builder().name(state).build()).build());
+        }
+        return described.toArray(new Instance[0]);
+    }
+
+    public int getLaunchedWorkers() {
+        int launched = 0;
+        for (LocalInstance instance : instances.values()) {
+            if (instance.hasTag("type", "worker"))
+                launched++;
+        }
+        return launched;
+    }
+
+    public int getPeakWorkers() {
+        return peakWorkers.get();
+    }
+
+    // Time the worker processes ran, boot excluded, for the utilization
+    public long getWorkerMillis() {
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (LocalInstance instance : instances.values()) {
+            if (!instance.hasTag("type", "worker") || instance.worker == null)
+                continue;
+            long end = instance.stoppedAt > 0 ? instance.stoppedAt : now;
+            total += Math.max(0, end - instance.launchedAt - bootMillis);
+        }
+        return total;
+    }
+
+}
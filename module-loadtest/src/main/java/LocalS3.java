@@ -0,0 +1,216 @@
+import operations.S3Operations;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchBucketException;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// S3 in memory: buckets of objects with an MD5 ETag like S3 gives single part uploads
+public class LocalS3 extends S3Operations {
+
+    private final Map<String, ConcurrentSkipListMap<String, byte[]>> buckets = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, byte[]>> multipartUploads = new ConcurrentHashMap<>();
+    private final CallCounter calls;
+
+    public LocalS3(CallCounter calls) {
+        // The SDK client of the superclass is built but never called
+        super(Region.US_EAST_1);
+        this.calls = calls;
+    }
+
+    @Override
+    public void createBucket(String name) {
+        calls.count("s3", "CreateBucket");
+        buckets.putIfAbsent(name, new ConcurrentSkipListMap<>());
+    }
+
+    @Override
+    public void deleteBucket(String name) {
+        calls.count("s3", "DeleteBucket");
+        buckets.remove(name);
+    }
+
+    @Override
+    public boolean doesBucketExist(String name) {
+        calls.count("s3", "HeadBucket");
+        return buckets.containsKey(name);
+    }
+
+    @Override
+    public String uploadFile(String bucketName, String key, File file) {
+        try {
+            return uploadBytesAsFile(bucketName, key, Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String uploadContentAsFile(String bucketName, String key, String content) {
+        return uploadBytesAsFile(bucketName, key, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String uploadBytesAsFile(String bucketName, String key, byte[] content) {
+        calls.count("s3", "PutObject");
+        bucket(bucketName).put(key, content);
+        return "s3://" + bucketName + "/" + key;
+    }
+
+    @Override
+    public String createMultipartUpload(String bucketName, String key) {
+        calls.count("s3", "CreateMultipartUpload");
+        bucket(bucketName);
+        String uploadId = UUID.randomUUID().toString();
+        multipartUploads.put(uploadId, new ConcurrentHashMap<>());
+        return uploadId;
+    }
+
+    @Override
+    public CompletedPart uploadPart(String bucketName, String key, String uploadId, int partNumber, byte[] content) {
+        calls.count("s3", "UploadPart");
+        multipartUploads.get(uploadId).put(partNumber, content);
+        return CompletedPart.builder().partNumber(partNumber).eTag(eTag(content)).build();
+    }
+
+    @Override
+    public String completeMultipartUpload(String bucketName, String key, String uploadId, List<CompletedPart> parts) {
+        calls.count("s3", "CompleteMultipartUpload");
+        Map<Integer, byte[]> uploaded = multipartUploads.remove(uploadId);
+        List<CompletedPart> ordered = new ArrayList<>(parts);
+        ordered.sort(Comparator.comparing(CompletedPart::partNumber));
+
+        int length = 0;
+        for (CompletedPart part : ordered) {
+            length += uploaded.get(part.partNumber()).length;
+        }
+        byte[] content = new byte[length];
+        int offset = 0;
+        for (CompletedPart part : ordered) {
+            byte[] bytes = uploaded.get(part.partNumber());
+            System.arraycopy(bytes, 0, content, offset, bytes.length);
+            offset += bytes.length;
+        }
+        bucket(bucketName).put(key, content);
+        return "s3://" + bucketName + "/" + key;
+    }
+
+    @Override
+    public void abortMultipartUpload(String bucketName, String key, String uploadId) {
+        calls.count("s3", "AbortMultipartUpload");
+        multipartUploads.remove(uploadId);
+    }
+
+    @Override
+    public void downloadFile(String bucketName, String key, File file) {
+        calls.count("s3", "GetObject");
+        try {
+            Files.write(file.toPath(), object(bucketName, key));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public InputStream getFileStream(String bucketName, String key) {
+        calls.count("s3", "GetObject");
+        return new ByteArrayInputStream(object(bucketName, key));
+    }
+
+    @Override
+    public InputStream getFileStream(String bucketName, String key, long offset, String eTag) {
+        calls.count("s3", "GetObject");
+        byte[] content = object(bucketName, key);
+        if (eTag != null && !eTag.equals(eTag(content)))
+            throw (S3Exception) S3Exception.builder().statusCode(412).message("At least one of the pre-conditions you specified did not hold").build();
+        return new ByteArrayInputStream(content, (int) offset, content.length - (int) offset);
+    }
+
+    @Override
+    public HeadObjectResponse headFile(String bucketName, String key) {
+        calls.count("s3", "HeadObject");
+        byte[] content = object(bucketName, key);
+        return HeadObjectResponse.builder().contentLength((long) content.length).eTag(eTag(content)).build();
+    }
+
+    @Override
+    public void deleteFile(String bucketName, String key) {
+        calls.count("s3", "DeleteObject");
+        bucket(bucketName).remove(key);
+    }
+
+    @Override
+    public String[] listFiles(String bucketName) {
+        calls.count("s3", "ListObjectsV2");
+        return bucket(bucketName).keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public List<String> listFiles(String bucketName, String prefix) {
+        ConcurrentSkipListMap<String, byte[]> bucket = bucket(bucketName);
+        List<String> keys = new ArrayList<>(bucket.tailMap(prefix).keySet());
+        keys.removeIf(key -> !key.startsWith(prefix));
+        // One call per page of 1000 keys
+        calls.count("s3", "ListObjectsV2", Math.max(1, (keys.size() + 999) / 1000));
+        return keys;
+    }
+
+    @Override
+    public void deleteFiles(String bucketName, List<String> keys) {
+        calls.count("s3", "DeleteObjects", (keys.size() + 999) / 1000);
+        for (String key : keys) {
+            bucket(bucketName).remove(key);
+        }
+    }
+
+    @Override
+    public boolean doesFileExist(String bucketName, String key) {
+        return Arrays.asList(listFiles(bucketName)).contains(key);
+    }
+
+    private ConcurrentSkipListMap<String, byte[]> bucket(String name) {
+        ConcurrentSkipListMap<String, byte[]> bucket = buckets.get(name);
+        if (bucket == null)
+            throw (NoSuchBucketException) NoSuchBucketException.builder().statusCode(404).message("No such bucket " + name).build();
+        return bucket;
+    }
+
+    private byte[] object(String bucketName, String key) {
+        byte[] content = bucket(bucketName).get(key);
+        if (content == null)
+            throw (NoSuchKeyException) NoSuchKeyException.builder().statusCode(404).message("No such key " + key).build();
+        return content;
+    }
+
+    private static String eTag(byte[] content) {
+        try {
+            StringBuilder hex = new StringBuilder("\"");
+            for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
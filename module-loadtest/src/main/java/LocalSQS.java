@@ -0,0 +1,290 @@
+import operations.SQSOperations;
+import operations.Tracer;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.QueueDoesNotExistException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+// SQS in memory with standard queue semantics: a received message is invisible for the visibility
+// timeout and comes back unless it is deleted, only the latest receipt handle of a message is valid,
+// receives long poll. Every process gets its own view() with its own queue URL cache, as every
+// SQSOperations has its own
+public class LocalSQS extends SQSOperations {
+
+    // The default visibility timeout of a new queue
+    private static final long VISIBILITY_TIMEOUT_MILLIS = 30 * 1000;
+
+    private static class StoredMessage {
+        private final String messageId = UUID.randomUUID().toString();
+        private final String body;
+        private final String sentTimestamp = String.valueOf(System.currentTimeMillis());
+        // The span the message was sent in, null for none
+        private final Tracer.Context context;
+        private String receiptHandle;
+        private long visibleAt;
+
+        private StoredMessage(String body, Tracer.Context context) {
+            this.body = body;
+            this.context = context;
+        }
+    }
+
+    private static class Queue {
+        private final ArrayDeque<StoredMessage> visible = new ArrayDeque<>();
+        // By receipt handle
+        private final Map<String, StoredMessage> inFlight = new HashMap<>();
+
+        // Messages whose visibility timeout ran out go back to the queue. Called holding the queue
+        private long releaseExpired(long now) {
+            long nextExpiry = Long.MAX_VALUE;
+            Iterator<StoredMessage> iterator = inFlight.values().iterator();
+            while (iterator.hasNext()) {
+                StoredMessage message = iterator.next();
+                if (message.visibleAt <= now) {
+                    iterator.remove();
+                    visible.addLast(message);
+                } else {
+                    nextExpiry = Math.min(nextExpiry, message.visibleAt);
+                }
+            }
+            return nextExpiry;
+        }
+    }
+
+    private static class Broker {
+        private final Map<String, Queue> queues = new ConcurrentHashMap<>();
+        private final CallCounter calls;
+        private volatile BiConsumer<String, String> sendListener;
+
+        private Broker(CallCounter calls) {
+            this.calls = calls;
+        }
+    }
+
+    private final Broker broker;
+    private final Map<String, String> queueUrls = new ConcurrentHashMap<>();
+
+    public LocalSQS(CallCounter calls) {
+        this(new Broker(calls));
+    }
+
+    private LocalSQS(Broker broker) {
+        // The SDK client of the superclass is built but never called
+        super(Region.US_EAST_1);
+        this.broker = broker;
+    }
+
+    // The same queues for another process
+    public LocalSQS view() {
+        return new LocalSQS(broker);
+    }
+
+    // Called with the queue name and body of every message sent, to observe the protocol
+    public void onSend(BiConsumer<String, String> listener) {
+        broker.sendListener = listener;
+    }
+
+    @Override
+    public String createQueue(String name) {
+        broker.calls.count("sqs", "CreateQueue");
+        broker.queues.putIfAbsent(name, new Queue());
+        String queueUrl = url(name);
+        queueUrls.put(name, queueUrl);
+        return queueUrl;
+    }
+
+    @Override
+    public void deleteQueue(String queueName) {
+        String name = name(queueName);
+        if (getQueueUrl(name).isEmpty())
+            return;
+
+        broker.calls.count("sqs", "DeleteQueue");
+        Queue queue = broker.queues.remove(name);
+        queueUrls.remove(name);
+        if (queue != null) {
+            synchronized (queue) {
+                queue.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public String getQueueUrl(String queueName) {
+        String name = name(queueName);
+        String cached = queueUrls.get(name);
+        if (cached != null)
+            return cached;
+
+        broker.calls.count("sqs", "GetQueueUrl");
+        if (!broker.queues.containsKey(name))
+            return "";
+        queueUrls.put(name, url(name));
+        return url(name);
+    }
+
+    @Override
+    public Map<QueueAttributeName, String> getQueueAttributes(String queueName, QueueAttributeName... attributes) {
+        if (getQueueUrl(queueName).isEmpty())
+            return Collections.emptyMap();
+
+        broker.calls.count("sqs", "GetQueueAttributes");
+        Queue queue = queue(queueName);
+        Map<QueueAttributeName, String> values = new HashMap<>();
+        synchronized (queue) {
+            queue.releaseExpired(System.currentTimeMillis());
+            for (QueueAttributeName attribute : attributes) {
+                if (attribute == QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES)
+                    values.put(attribute, String.valueOf(queue.visible.size()));
+                else if (attribute == QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_NOT_VISIBLE)
+                    values.put(attribute, String.valueOf(queue.inFlight.size()));
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void sendMessage(String queueUrl, String message) {
+        broker.calls.count("sqs", "SendMessage");
+        send(queueUrl, message, Tracer.current());
+    }
+
+    // The two argument sendMessages comes here as well
+    @Override
+    public void sendMessages(String queueName, List<String> messages, List<Tracer.Context> contexts) {
+        if (getQueueUrl(queueName).isEmpty())
+            return;
+
+        broker.calls.count("sqs", "SendMessageBatch", (messages.size() + 9) / 10);
+        for (int i = 0; i < messages.size(); i++) {
+            send(queueName, messages.get(i), contexts.get(i));
+        }
+    }
+
+    private void send(String queueName, String body, Tracer.Context context) {
+        Queue queue = queue(queueName);
+        synchronized (queue) {
+            queue.visible.addLast(new StoredMessage(body, context));
+            queue.notifyAll();
+        }
+
+        BiConsumer<String, String> listener = broker.sendListener;
+        if (listener != null)
+            listener.accept(name(queueName), body);
+    }
+
+    @Override
+    public List<Message> receiveMessages(String queueName, int waitTimeSeconds) {
+        if (getQueueUrl(queueName).isEmpty())
+            return new LinkedList<>();
+        return receive(queueName, 10, waitTimeSeconds);
+    }
+
+    @Override
+    public Message receiveMessage(String queueName, int waitTimeSeconds) {
+        if (getQueueUrl(queueName).isEmpty())
+            return null;
+        List<Message> messages = receive(queueName, 1, waitTimeSeconds);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    private List<Message> receive(String queueName, int max, int waitTimeSeconds) {
+        broker.calls.count("sqs", "ReceiveMessage");
+        Queue queue = broker.queues.get(name(queueName));
+        if (queue == null)
+            throw queueDoesNotExist(queueName);
+
+        long deadline = System.currentTimeMillis() + waitTimeSeconds * 1000L;
+        List<Message> received = new ArrayList<>();
+        synchronized (queue) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                long nextExpiry = queue.releaseExpired(now);
+                while (received.size() < max && !queue.visible.isEmpty()) {
+                    StoredMessage message = queue.visible.pollFirst();
+                    message.receiptHandle = UUID.randomUUID().toString();
+                    message.visibleAt = now + VISIBILITY_TIMEOUT_MILLIS;
+                    queue.inFlight.put(message.receiptHandle, message);
+                    received.add(Message.builder().messageId(message.messageId).body(message.body)
+                            .receiptHandle(message.receiptHandle)
+                            .attributes(Collections.singletonMap(MessageSystemAttributeName.SENT_TIMESTAMP, message.sentTimestamp))
+                            .messageAttributes(message.context == null ? null : Tracer.attributes(message.context)).build());
+                }
+                if (!received.isEmpty() || now >= deadline || broker.queues.get(name(queueName)) != queue)
+                    return received;
+
+                try {
+                    queue.wait(Math.max(1, Math.min(deadline, nextExpiry) - now));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return received;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void deleteMessage(String queueName, String receiptHandle) {
+        if (getQueueUrl(queueName).isEmpty())
+            return;
+
+        broker.calls.count("sqs", "DeleteMessage");
+        Queue queue = queue(queueName);
+        synchronized (queue) {
+            // A stale receipt handle deletes nothing, the message was received again since
+            queue.inFlight.remove(receiptHandle);
+        }
+    }
+
+    @Override
+    public void changeVisibilityTimeout(String queueName, String receiptHandle, int timeout) {
+        if (getQueueUrl(queueName).isEmpty())
+            return;
+
+        broker.calls.count("sqs", "ChangeMessageVisibility");
+        Queue queue = queue(queueName);
+        synchronized (queue) {
+            StoredMessage message = queue.inFlight.get(receiptHandle);
+            if (message != null) {
+                message.visibleAt = System.currentTimeMillis() + timeout * 1000L;
+                if (timeout == 0)
+                    queue.notifyAll();
+            }
+        }
+    }
+
+    private Queue queue(String queueName) {
+        Queue queue = broker.queues.get(name(queueName));
+        if (queue == null)
+            throw queueDoesNotExist(queueName);
+        return queue;
+    }
+
+    private static QueueDoesNotExistException queueDoesNotExist(String queueName) {
+        return (QueueDoesNotExistException) QueueDoesNotExistException.builder()
+                .message("The specified queue does not exist: " + queueName).build();
+    }
+
+    // Operations take queue names and URLs alike
+    private static String name(String queueNameOrUrl) {
+        return queueNameOrUrl.substring(queueNameOrUrl.lastIndexOf('/') + 1);
+    }
+
+    private static String url(String name) {
+        return "http://localhost/000000000000/" + name;
+    }
+
+}
@@ -0,0 +1,131 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Serves /doc-<k>.pdf on localhost in place of the PDF links of real inputs. Every response waits
+// latencyMillis plus an exponentially distributed jitter, and a fixed share of the documents are
+// broken links that always answer 404, to HEAD and GET alike
+public class PdfServer {
+
+    private final HttpServer server;
+    private final byte[] pdf;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double failureRate;
+
+    private final AtomicLong gets = new AtomicLong(0);
+    private final AtomicLong heads = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+
+    public PdfServer(int pages, long latencyMillis, long jitterMillis, double failureRate) throws IOException {
+        this.pdf = document(pages);
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.failureRate = failureRate;
+
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        // Delays must not hold other requests up
+        server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "pdf-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    public String url(int document) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/doc-" + document + ".pdf";
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        boolean head = exchange.getRequestMethod().equals("HEAD");
+        (head ? heads : gets).incrementAndGet();
+        try {
+            long delay = latencyMillis;
+            if (jitterMillis > 0)
+                delay += (long) (-jitterMillis * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (isBroken(exchange.getRequestURI().getPath())) {
+            failures.incrementAndGet();
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+        if (head) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(pdf.length));
+            exchange.sendResponseHeaders(200, -1);
+        } else {
+            exchange.sendResponseHeaders(200, pdf.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(pdf);
+            }
+        }
+        exchange.close();
+    }
+
+    // The same documents fail on every request
+    private boolean isBroken(String path) {
+        return new Random(path.hashCode()).nextDouble() < failureRate;
+    }
+
+    private static byte[] document(int pages) throws IOException {
+        PDType1Font font = new PDType1Font(Standard14Fonts.FontName.HELVETICA);
+        try (PDDocument document = new PDDocument()) {
+            for (int p = 0; p < pages; p++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(font, 12);
+                    content.setLeading(14);
+                    content.newLineAtOffset(50, 720);
+                    for (int l = 0; l < 40; l++) {
+                        content.showText("Load test page " + (p + 1) + ", line " + (l + 1));
+                        content.newLine();
+                    }
+                    content.endText();
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    public long getGets() {
+        return gets.get();
+    }
+
+    public long getHeads() {
+        return heads.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+}
@@ -0,0 +1,76 @@
+import operations.S3Operations;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Keeps a job's results in S3 so that a manager that takes the job over after a crash only
+// re-dispatches the tasks without a result. Task ids are the input's line numbers and the input
+// does not change, so the results are all the state there is. Every flush writes the results
+// since the previous one as a new segment, one <taskId>\t<action>\t<pdfUrl>\t<output> per line
+public class JobCheckpoint {
+
+    private final S3Operations s3Operations;
+    private final String bucket;
+    private final String prefix;
+
+    private final StringBuilder pending = new StringBuilder();
+    private int segment;
+
+    public JobCheckpoint(S3Operations s3Operations, String bucket, String jobId) {
+        this.s3Operations = s3Operations;
+        this.bucket = bucket;
+        this.prefix = "checkpoint-" + jobId + "/";
+    }
+
+    public synchronized void record(int taskId, String action, String pdfUrl, String output) {
+        pending.append(taskId).append('\t').append(action).append('\t').append(pdfUrl).append('\t')
+                .append(output == null ? "" : output.replace('\n', ' ').replace('\r', ' ')).append('\n');
+    }
+
+    public synchronized void flush() {
+        if (pending.length() == 0)
+            return;
+        try {
+            s3Operations.uploadContentAsFile(bucket, String.format("%ssegment-%06d", prefix, segment), pending.toString());
+            segment++;
+            pending.setLength(0);
+        } catch (Exception e) {
+            // Kept for the next flush, a crash before it only costs re-running these tasks
+            System.err.println("Failed to write checkpoint " + prefix + ": " + e.getMessage());
+        }
+    }
+
+    // Replays the results of an earlier run of the job into it, returns how many there were
+    public synchronized int restore(JobData job) {
+        List<String> segments = s3Operations.listFiles(bucket, prefix);
+        int restored = 0;
+        for (String key : segments) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(s3Operations.getFileStream(bucket, key), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t", 4);
+                    if (parts.length < 4)
+                        continue;
+                    if (job.restoreResult(Integer.parseInt(parts[0]), parts[1], parts[2], parts[3]))
+                        restored++;
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to read checkpoint " + key + ": " + e.getMessage());
+            }
+        }
+
+        // New segments go after the restored ones, so a second takeover sees both
+        segment = segments.size();
+        return restored;
+    }
+
+    public synchronized void delete() {
+        List<String> segments = s3Operations.listFiles(bucket, prefix);
+        if (!segments.isEmpty())
+            s3Operations.deleteFiles(bucket, segments);
+    }
+
+}
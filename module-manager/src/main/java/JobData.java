@@ -0,0 +1,522 @@
+import operations.Tracer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class JobData {
+
+    private final String id;
+    private final LocalAppData localApp;
+    // Every input line is a task and gets a row, only the first line of each kind is sent to the workers
+    private final AtomicInteger tasksCount;
+    private final AtomicInteger dispatchedTasks;
+    private final AtomicInteger dispatchedResults;
+    // Set once the whole input was read, until then more tasks may still be added
+    private volatile boolean inputComplete;
+
+    // Ids of the tasks whose result was already written to the summary
+    private final BitSet completedTasks;
+    private SummaryWriter summaryWriter;
+    private JobCheckpoint checkpoint;
+    private ProgressPublisher progressPublisher;
+    private ScheduledFuture<?> progressReports;
+    // Extends the input messages and flushes the checkpoint until the job is done
+    private ScheduledFuture<?> maintenance;
+
+    // lmQueue messages the input came in by shard index, a single one unless the local app sharded
+    // a large input. They stay until the summary is sent. Guarded by itself
+    private final Map<Integer, String> inputMessages;
+    private final BitSet readShards;
+    // -1 until the message of the last shard came in
+    private int shardCount;
+
+    // Lines with the same action and URL run once and the result is written for each of them. Lines
+    // are known by a 64-bit hash (see lineHash), not held themselves. A list of duplicates goes once
+    // their rows are written, the maps themselves once the input is read and they are of no more use.
+    // Guarded by completedTasks
+    private Map<Long, Integer> firstTaskIds;
+    private Map<Integer, List<Integer>> duplicates;
+    // Outputs of finished first tasks, for duplicates read after the result came in. Dropped with the input
+    private Map<Integer, String> outputs;
+    private final AtomicInteger duplicateTasks;
+
+    // Tasks handed to the workers that have no result yet, by task id. Guarded by completedTasks
+    private final Map<Integer, ReleasedTask> releasedTasks;
+
+    // The job's span and those of its tasks without a result, by task id. Guarded by completedTasks
+    private Tracer.Span span;
+    private final Map<Integer, Tracer.Span> taskSpans;
+
+    // Worker-reported run times of the most recent results, a ring buffer
+    private static final int RUNTIME_SAMPLES = 500;
+    private final long[] runtimes;
+    private int runtimeCount;
+
+    private static class ReleasedTask {
+        private final String message;
+        private final long releasedAt;
+        private boolean speculated;
+        // Workers that died while holding this task
+        private int orphaned;
+
+        private ReleasedTask(String message, long releasedAt) {
+            this.message = message;
+            this.releasedAt = releasedAt;
+        }
+    }
+
+    // Expected vs received results; completion fires once when they meet
+    private final AtomicInteger resultsReceived;
+    // Results whose output is an error instead of the location of the converted file
+    private final AtomicInteger failedResults;
+    private final CompletableFuture<JobData> completion;
+    // Set once the job was given up on, see fail()
+    private final AtomicBoolean failed;
+    private final long startedAt;
+
+    // The id is derived from the input, so a manager that takes over the job finds its checkpoint
+    public JobData(String id, LocalAppData localApp) {
+        this.id = id;
+        this.localApp = localApp;
+        this.tasksCount = new AtomicInteger(0);
+        this.dispatchedTasks = new AtomicInteger(0);
+        this.dispatchedResults = new AtomicInteger(0);
+        this.inputComplete = false;
+        this.completedTasks = new BitSet();
+        this.inputMessages = new HashMap<>();
+        this.readShards = new BitSet();
+        this.shardCount = -1;
+        this.firstTaskIds = new HashMap<>();
+        this.duplicates = new HashMap<>();
+        this.outputs = new HashMap<>();
+        this.duplicateTasks = new AtomicInteger(0);
+        this.releasedTasks = new HashMap<>();
+        this.taskSpans = new HashMap<>();
+        this.runtimes = new long[RUNTIME_SAMPLES];
+        this.runtimeCount = 0;
+        this.resultsReceived = new AtomicInteger(0);
+        this.failedResults = new AtomicInteger(0);
+        this.completion = new CompletableFuture<>();
+        this.failed = new AtomicBoolean(false);
+        this.startedAt = System.currentTimeMillis();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public Tracer.Span getSpan() {
+        return span;
+    }
+
+    public void setSpan(Tracer.Span span) {
+        this.span = span;
+    }
+
+    // The span ends with the task's result
+    public void addTaskSpan(int taskId, Tracer.Span taskSpan) {
+        synchronized (completedTasks) {
+            taskSpans.put(taskId, taskSpan);
+        }
+    }
+
+    // null once the task has a result
+    public Tracer.Context taskContext(int taskId) {
+        synchronized (completedTasks) {
+            Tracer.Span taskSpan = taskSpans.get(taskId);
+            return taskSpan == null ? null : taskSpan.context();
+        }
+    }
+
+    public LocalAppData getLocalApp() {
+        return localApp;
+    }
+
+    public int getTasksCount() {
+        return tasksCount.get();
+    }
+
+    // Tasks sent to the workers
+    public void addTasks(int count) {
+        tasksCount.addAndGet(count);
+        dispatchedTasks.addAndGet(count);
+    }
+
+    // Returns true if the line has to be dispatched, false if it duplicates an earlier line.
+    // A duplicate gets the earlier line's result, right away if it is already there
+    public boolean addLine(int taskId, String line) {
+        String output = null;
+        int firstTaskId;
+        long hash = lineHash(line);
+        synchronized (completedTasks) {
+            Integer first = firstTaskIds.get(hash);
+            if (first == null) {
+                firstTaskIds.put(hash, taskId);
+                return true;
+            }
+
+            firstTaskId = first;
+            tasksCount.incrementAndGet();
+            duplicateTasks.incrementAndGet();
+            if (!completedTasks.get(firstTaskId)) {
+                List<Integer> ids = duplicates.get(firstTaskId);
+                if (ids == null) {
+                    ids = new ArrayList<>();
+                    duplicates.put(firstTaskId, ids);
+                }
+                ids.add(taskId);
+                return false;
+            }
+            output = outputs.get(firstTaskId);
+            completedTasks.set(taskId);
+        }
+
+        String[] parts = line.split("\t", 2);
+        completeDuplicate(taskId, parts[0], parts.length > 1 ? parts[1] : "", output);
+        return false;
+    }
+
+    // The first 64 bits of the SHA-1 of the line. Two distinct lines of a hundred million share
+    // one with a chance of about 1 in 4000, a map of the lines would hold the whole input instead
+    private static long lineHash(String line) {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-1").digest(line.getBytes(StandardCharsets.UTF_8))).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean isInputComplete() {
+        return inputComplete;
+    }
+
+    public void setInputComplete() {
+        synchronized (completedTasks) {
+            // No more duplicates can come in. A cleared HashMap keeps its table, hence new ones
+            firstTaskIds = null;
+            outputs = null;
+            if (duplicates.isEmpty())
+                duplicates = new HashMap<>();
+        }
+        this.inputComplete = true;
+        checkCompletion();
+    }
+
+    public String taskMessage(int taskId, String line) {
+        return id + "\t" + taskId + "\t" + localApp.getBucket() + "\t" + line;
+    }
+
+    public SummaryWriter getSummaryWriter() {
+        return summaryWriter;
+    }
+
+    public void setSummaryWriter(SummaryWriter summaryWriter) {
+        this.summaryWriter = summaryWriter;
+    }
+
+    public JobCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    public void setCheckpoint(JobCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public ProgressPublisher getProgressPublisher() {
+        return progressPublisher;
+    }
+
+    public ScheduledFuture<?> getProgressReports() {
+        return progressReports;
+    }
+
+    public void setProgress(ProgressPublisher progressPublisher, ScheduledFuture<?> progressReports) {
+        this.progressPublisher = progressPublisher;
+        this.progressReports = progressReports;
+    }
+
+    public ScheduledFuture<?> getMaintenance() {
+        return maintenance;
+    }
+
+    public void setMaintenance(ScheduledFuture<?> maintenance) {
+        this.maintenance = maintenance;
+    }
+
+    // Returns false if the shard is already being read, a redelivered message only replaces the receipt handle.
+    // shardCount is -1 for any but the last shard
+    public boolean addInputMessage(int shard, int shardCount, String receiptHandle) {
+        synchronized (inputMessages) {
+            boolean added = inputMessages.put(shard, receiptHandle) == null;
+            if (shardCount > 0)
+                this.shardCount = shardCount;
+            return added;
+        }
+    }
+
+    // Returns true once every shard was read, the input is complete then
+    public boolean shardRead(int shard) {
+        synchronized (inputMessages) {
+            readShards.set(shard);
+            return shardCount > 0 && readShards.cardinality() == shardCount;
+        }
+    }
+
+    public List<String> getInputMessages() {
+        synchronized (inputMessages) {
+            return new ArrayList<>(inputMessages.values());
+        }
+    }
+
+    // Returns false if the task already had a result
+    public boolean addResult(int taskId, String action, String pdfUrl, String output) {
+        return addResult(taskId, action, pdfUrl, output, true);
+    }
+
+    // A counted task answered by the manager itself, it never reaches a worker
+    public boolean rejectTask(int taskId, String action, String pdfUrl, String reason) {
+        return addResult(taskId, action, pdfUrl, reason, false);
+    }
+
+    private boolean addResult(int taskId, String action, String pdfUrl, String output, boolean dispatched) {
+        List<Integer> fanOut;
+        Tracer.Span taskSpan;
+        // SQS may deliver a result twice, only the first one counts
+        synchronized (completedTasks) {
+            if (completedTasks.get(taskId))
+                return false;
+            completedTasks.set(taskId);
+            taskSpan = taskSpans.remove(taskId);
+
+            releasedTasks.remove(taskId);
+            fanOut = duplicates.remove(taskId);
+            if (fanOut != null) {
+                for (int duplicate : fanOut) {
+                    completedTasks.set(duplicate);
+                }
+                if (inputComplete && duplicates.isEmpty())
+                    duplicates = new HashMap<>();
+            }
+            if (outputs != null)
+                outputs.put(taskId, output);
+        }
+
+        if (dispatched)
+            dispatchedResults.incrementAndGet();
+        else
+            dispatchedTasks.decrementAndGet();
+        if (checkpoint != null)
+            checkpoint.record(taskId, action, pdfUrl, output);
+        complete(taskId, action, pdfUrl, output);
+        if (taskSpan != null)
+            taskSpan.tag("outcome", output != null && output.startsWith("s3://") ? "success" : "failure").end();
+
+        // Duplicates follow their first line, in input order
+        if (fanOut != null) {
+            for (int duplicate : fanOut) {
+                completeDuplicate(duplicate, action, pdfUrl, output);
+            }
+        }
+        return true;
+    }
+
+    // Called by the scheduler when the task message goes out to mwQueue
+    public void onReleased(int taskId, String message) {
+        synchronized (completedTasks) {
+            if (!completedTasks.get(taskId))
+                releasedTasks.put(taskId, new ReleasedTask(message, System.currentTimeMillis()));
+        }
+    }
+
+    // Counted tasks that wait in the scheduler or the pre-flight, not yet sent to mwQueue
+    public int getUnreleasedTasks() {
+        synchronized (completedTasks) {
+            return getOutstandingTasks() - releasedTasks.size();
+        }
+    }
+
+    // True once every counted task went out to the workers, nothing waits in the scheduler or the pre-flight
+    public boolean isFullyReleased() {
+        synchronized (completedTasks) {
+            return inputComplete && releasedTasks.size() >= getOutstandingTasks();
+        }
+    }
+
+    // Messages of up to max released tasks that are out for longer than thresholdMillis and were not
+    // copied yet. Each task is copied at most once
+    public List<String> takeStragglers(long thresholdMillis, int max) {
+        long now = System.currentTimeMillis();
+        List<String> stragglers = new ArrayList<>();
+        synchronized (completedTasks) {
+            for (ReleasedTask task : releasedTasks.values()) {
+                if (stragglers.size() >= max)
+                    break;
+                if (!task.speculated && now - task.releasedAt > thresholdMillis) {
+                    task.speculated = true;
+                    stragglers.add(task.message);
+                }
+            }
+        }
+        return stragglers;
+    }
+
+    // Called when the worker holding the task died, returns how often that happened to the task so far.
+    // 0 if the task is done or unknown
+    public int onTaskOrphaned(int taskId) {
+        synchronized (completedTasks) {
+            ReleasedTask task = releasedTasks.get(taskId);
+            return task == null ? 0 : ++task.orphaned;
+        }
+    }
+
+    // Gives up on a released task, its row holds the reason
+    public boolean failTask(int taskId, String reason) {
+        String message;
+        synchronized (completedTasks) {
+            ReleasedTask task = releasedTasks.get(taskId);
+            if (task == null)
+                return false;
+            message = task.message;
+        }
+
+        // <jobId>\t<taskId>\t<bucket>\t<action>\t<pdfUrl>
+        String[] parts = message.split("\t", 5);
+        return addResult(taskId, parts.length > 3 ? parts[3] : "", parts.length > 4 ? parts[4] : "", reason);
+    }
+
+    public synchronized void recordRuntime(long millis) {
+        runtimes[runtimeCount % RUNTIME_SAMPLES] = millis;
+        runtimeCount++;
+    }
+
+    public synchronized int getRuntimeSamples() {
+        return Math.min(runtimeCount, RUNTIME_SAMPLES);
+    }
+
+    // Run time below which the given fraction of the recent tasks finished, -1 without samples
+    public synchronized long runtimePercentile(double fraction) {
+        int samples = getRuntimeSamples();
+        if (samples == 0)
+            return -1;
+        long[] sorted = Arrays.copyOf(runtimes, samples);
+        Arrays.sort(sorted);
+        return sorted[Math.min(samples - 1, (int) Math.ceil(fraction * samples) - 1)];
+    }
+
+    private void completeDuplicate(int taskId, String action, String pdfUrl, String output) {
+        if (checkpoint != null)
+            checkpoint.record(taskId, action, pdfUrl, output);
+        complete(taskId, action, pdfUrl, output);
+    }
+
+    // A result from the checkpoint of an earlier run. Its task is counted here, the input reader skips it
+    public boolean restoreResult(int taskId, String action, String pdfUrl, String output) {
+        synchronized (completedTasks) {
+            if (completedTasks.get(taskId))
+                return false;
+            completedTasks.set(taskId);
+
+            // Later duplicates of a restored line are answered from it
+            long hash = lineHash(action + "\t" + pdfUrl);
+            if (firstTaskIds.containsKey(hash)) {
+                duplicateTasks.incrementAndGet();
+            } else {
+                firstTaskIds.put(hash, taskId);
+                outputs.put(taskId, output);
+            }
+        }
+
+        tasksCount.incrementAndGet();
+        complete(taskId, action, pdfUrl, output);
+        return true;
+    }
+
+    public boolean isTaskCompleted(int taskId) {
+        synchronized (completedTasks) {
+            return completedTasks.get(taskId);
+        }
+    }
+
+    private void complete(int taskId, String action, String pdfUrl, String output) {
+        summaryWriter.append(taskId, action, pdfUrl, output);
+        if (output == null || !output.startsWith("s3://"))
+            failedResults.incrementAndGet();
+        resultsReceived.incrementAndGet();
+        checkCompletion();
+    }
+
+    public int getResultsReceived() {
+        return resultsReceived.get();
+    }
+
+    public int getFailedResults() {
+        return failedResults.get();
+    }
+
+    // Tasks sent to the workers that did not come back yet
+    public int getOutstandingTasks() {
+        return dispatchedTasks.get() - dispatchedResults.get();
+    }
+
+    public int getDispatchedResults() {
+        return dispatchedResults.get();
+    }
+
+    public int getDuplicateTasks() {
+        return duplicateTasks.get();
+    }
+
+    public boolean isComplete() {
+        return completion.isDone();
+    }
+
+    public CompletableFuture<JobData> getCompletion() {
+        return completion;
+    }
+
+    // Returns true if the job completed within the timeout
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            completion.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // Ends the job without a summary, whoever waits for its completion gets the cause.
+    // Returns false if it had failed already
+    public boolean fail(Throwable cause) {
+        if (!failed.compareAndSet(false, true))
+            return false;
+        completion.completeExceptionally(cause);
+        return true;
+    }
+
+    private void checkCompletion() {
+        if (inputComplete && resultsReceived.get() >= tasksCount.get())
+            completion.complete(this);
+    }
+
+}
@@ -0,0 +1,102 @@
+import operations.InstanceRegistry;
+import operations.Metrics;
+import operations.SQSOperations;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Keeps the worker table honest. A worker that stopped sending heartbeats, never came up or whose
+// instance is gone is dropped and terminated. The task it held is made visible in mwQueue again at
+// once instead of after its visibility timeout, and the scaling controller replaces the worker
+public class LivenessMonitor implements Runnable {
+
+    // Workers send a heartbeat every 10 seconds, three missed ones and the worker is dead
+    private static final long HEARTBEAT_TIMEOUT_MILLIS = 30 * 1000;
+    // From launch to the register message, boot and jar download included
+    private static final long BOOT_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    // A new instance may not show up in DescribeInstances right away
+    private static final long INSTANCE_GRACE_MILLIS = 60 * 1000;
+    // A task that took this many workers down with it is given up, so it cannot hang its job
+    private static final int MAX_ORPHANED = 3;
+
+    private final SQSOperations sqsOperations;
+    private final String mwQueue;
+    private final Map<String, JobData> jobs;
+    private final WorkerPool workerPool;
+    private final InstanceRegistry instanceRegistry;
+    private final Runnable onWorkerLost;
+
+    public LivenessMonitor(SQSOperations sqsOperations, String mwQueue, Map<String, JobData> jobs, WorkerPool workerPool,
+                           InstanceRegistry instanceRegistry, Runnable onWorkerLost) {
+        this.sqsOperations = sqsOperations;
+        this.mwQueue = mwQueue;
+        this.jobs = jobs;
+        this.workerPool = workerPool;
+        this.instanceRegistry = instanceRegistry;
+        this.onWorkerLost = onWorkerLost;
+    }
+
+    @Override
+    public synchronized void run() {
+        try {
+            check();
+        } catch (Exception e) {
+            System.err.println("[liveness] check failed: " + e.getMessage());
+        }
+    }
+
+    private void check() {
+        long now = System.currentTimeMillis();
+        Set<String> running = new HashSet<>(Arrays.asList(instanceRegistry.getActiveInstancesWithTag("worker-pool", mwQueue)));
+
+        boolean lost = false;
+        for (WorkerInfo worker : workerPool.snapshot()) {
+            String reason = null;
+            if (worker.isRegistered() && now - worker.getLastHeartbeat() > HEARTBEAT_TIMEOUT_MILLIS)
+                reason = "no heartbeat for " + (now - worker.getLastHeartbeat()) + "ms";
+            else if (!worker.isRegistered() && now - worker.getLaunchedAt() > BOOT_TIMEOUT_MILLIS)
+                reason = "not registered " + (now - worker.getLaunchedAt()) + "ms after launch";
+            // Only EC2 workers can be looked up, their ids are instance ids
+            else if (worker.getId().startsWith("i-") && !running.contains(worker.getId())
+                    && now - worker.getLaunchedAt() > INSTANCE_GRACE_MILLIS)
+                reason = "instance is no longer running";
+
+            if (reason != null && workerPool.onWorkerDead(worker.getId())) {
+                System.out.println("[liveness] worker " + worker.getId() + " is dead: " + reason);
+                Metrics.counter("manager_workers_lost_total", "Workers dropped without a terminate message").inc();
+                releaseTask(worker);
+                lost = true;
+            }
+        }
+
+        if (lost)
+            onWorkerLost.run();
+    }
+
+    private void releaseTask(WorkerInfo worker) {
+        String receiptHandle = worker.getCurrentReceiptHandle();
+        if (receiptHandle == null)
+            return;
+
+        JobData job = jobs.get(worker.getCurrentJobId());
+        int taskId = worker.getCurrentTaskId();
+        int orphaned = job == null ? 0 : job.onTaskOrphaned(taskId);
+        try {
+            if (orphaned >= MAX_ORPHANED) {
+                System.out.println("[liveness] task " + taskId + " of job " + job.getId() + " lost " + orphaned + " workers, giving up");
+                sqsOperations.deleteMessage(mwQueue, receiptHandle);
+                job.failTask(taskId, "Failed: " + orphaned + " workers died processing this document");
+                Metrics.counter("manager_tasks_orphaned_total", "Tasks of dead workers, by what became of them", "outcome", "given_up").inc();
+            } else {
+                sqsOperations.changeVisibilityTimeout(mwQueue, receiptHandle, 0);
+                Metrics.counter("manager_tasks_orphaned_total", "Tasks of dead workers, by what became of them", "outcome", "retried").inc();
+            }
+        } catch (Exception e) {
+            // The task finished or its visibility ran out in the meantime, the handle is no longer valid
+            System.out.println("[liveness] could not release task " + taskId + ": " + e.getMessage());
+        }
+    }
+
+}
@@ -1,22 +1,32 @@
-import java.util.LinkedList;
-import java.util.List;
-
 public class LocalAppData {
 
     private final int docsPerWorker;
     private final String lmQueue;
     private final String mlQueue;
     private final String bucket;
+    private final Priority priority;
+    // How often the local app gets progress and partial results, 0 if only the final summary
+    private final int progressIntervalSeconds;
+    // Whether the PDFs are checked with a HEAD request before they are dispatched
+    private final boolean preflight;
+    // s3:// URLs the workers launched for this local app copy their jar and AppCDS archive from,
+    // the archive is "-" if there is none
+    private final String workerJar;
+    private final String workerJsa;
     private boolean running;
-    private final List<String> results;
 
-    public LocalAppData(int docsPerWorker, String lmQueue, String mlQueue, String bucket) {
+    public LocalAppData(int docsPerWorker, String lmQueue, String mlQueue, String bucket, Priority priority,
+                        int progressIntervalSeconds, boolean preflight, String workerJar, String workerJsa) {
         this.docsPerWorker = docsPerWorker;
         this.lmQueue = lmQueue;
         this.mlQueue = mlQueue;
         this.bucket = bucket;
+        this.priority = priority;
+        this.progressIntervalSeconds = progressIntervalSeconds;
+        this.preflight = preflight;
+        this.workerJar = workerJar;
+        this.workerJsa = workerJsa;
         this.running = true;
-        this.results = new LinkedList<>();
     }
 
     public int getDocsPerWorker() {
@@ -35,6 +45,26 @@ public class LocalAppData {
         return bucket;
     }
 
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public int getProgressIntervalSeconds() {
+        return progressIntervalSeconds;
+    }
+
+    public boolean isPreflight() {
+        return preflight;
+    }
+
+    public String getWorkerJar() {
+        return workerJar;
+    }
+
+    public String getWorkerJsa() {
+        return workerJsa;
+    }
+
     public boolean isRunning() {
         return running;
     }
@@ -44,12 +74,4 @@ public class LocalAppData {
         this.running = running;
     }
 
-    public void addResult(String result) {
-        results.add(result);
-    }
-
-    public List<String> getResults() {
-        return results;
-    }
-
 }
@@ -1,54 +1,143 @@
 import operations.EC2Operations;
+import operations.InstanceRegistry;
+import operations.Metrics;
 import operations.S3Operations;
 import operations.SQSOperations;
+import operations.Tracer;
 import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.ec2.model.Tag;
 import software.amazon.awssdk.services.sqs.model.Message;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Manager {
 
     private final ExecutorService threadPool;
 
     // 9 machines in parallel is the maximum. 1 manager and 8 workers.
-    private static final int MAX_WORKERS = 8;
+    // Both can be changed with -Dmanager.maxWorkers and -Dmanager.threads, to size them with the load test
+    private static final int MAX_WORKERS = Integer.getInteger("manager.maxWorkers", 8);
+    private static final int THREADS = Integer.getInteger("manager.threads", 10);
+
+    // Tasks are read from the input and sent to mwQueue in batches of this size
+    private static final int TASK_BATCH_SIZE = 10;
+
+    private static final Tracer TRACER = new Tracer("manager");
+
+    // Seconds, a job takes from a few seconds to hours
+    private static final double[] JOB_BUCKETS = {5, 15, 30, 60, 120, 300, 600, 1200, 1800, 3600, 7200, 14400};
 
     private final S3Operations s3Operations;
     private final SQSOperations sqsOperations;
     private final EC2Operations ec2Operations;
+    private final InstanceRegistry instanceRegistry;
 
     private final List<LocalAppData> localApps;
+    private final Map<String, JobData> jobs = new ConcurrentHashMap<>();
+    // Shards of these jobs that are still uploading are dropped, their local app was told. By the time
+    // of the failure, an entry is forgotten after FAILED_JOB_TTL_MILLIS as the upload is long over
+    private final Map<String, Long> failedJobs = new ConcurrentHashMap<>();
+    private static final long FAILED_JOB_TTL_MILLIS = 60 * 60 * 1000;
 
     private final String mwQueue = "mw-queue-" + UUID.randomUUID();
     private final String wmQueue = "wm-queue-" + UUID.randomUUID();
     private final String registerQueue = "r-queue-31415926535";
 
-    private final List<Integer> workers = new LinkedList<>();
+    private final WorkerPool workerPool;
+
+    // Tasks of all jobs wait here and are released into mwQueue fairly between local apps
+    private final TaskScheduler taskScheduler;
+    private final Thread taskSchedulerThread;
+    // Sizes the PDFs of local apps that asked for it, before their tasks reach the scheduler
+    private final Preflight preflight;
+
+    private final ResultCollector resultCollector;
+    private final Thread resultCollectorThread;
+
+    // Re-evaluates the fleet size periodically and whenever tasks are queued
+    private static final int SCALING_INTERVAL_SECONDS = 15;
+    private final ScalingController scalingController;
+    private final ScheduledExecutorService scalingScheduler;
+
+    // Looks for tasks that hold a nearly finished job up, on the scaling thread
+    private static final int STRAGGLER_INTERVAL_SECONDS = 10;
+    private final StragglerDetector stragglerDetector;
+
+    // Drops dead workers and releases their tasks, also on the scaling thread
+    private static final int LIVENESS_INTERVAL_SECONDS = 5;
+    private final LivenessMonitor livenessMonitor;
+
+    // Sends every job's progress to its local app at the interval the local app asked for
+    private final ScheduledExecutorService progressScheduler;
+
+    // Keeps the input messages of running jobs invisible and their checkpoints flushed, and writes a
+    // job's summary once its last result is in. No thread waits for a job
+    private static final int MAINTENANCE_INTERVAL_SECONDS = 10;
+    private final ScheduledExecutorService jobScheduler;
+    // Summaries being written, cleanup() waits for them
+    private final Set<CompletableFuture<Void>> finishing = ConcurrentHashMap.newKeySet();
 
-    private final Object lock = new Object();
     private boolean running = true;
 
-    public Manager(int docsPerWorker, String lmQueue, String mlQueue, String bucket) {
-        this.threadPool = Executors.newFixedThreadPool(10);
+    public Manager(int docsPerWorker, String lmQueue, String mlQueue, String bucket, Priority priority,
+                   int progressIntervalSeconds, boolean preflight, String workerJar, String workerJsa,
+                   S3Operations s3Operations, SQSOperations sqsOperations, EC2Operations ec2Operations) {
+        this.threadPool = Executors.newFixedThreadPool(THREADS);
 
-        Region region = Region.US_EAST_1;
-        this.s3Operations = new S3Operations(region);
-        this.sqsOperations = new SQSOperations(region);
-        this.ec2Operations = new EC2Operations(region);
+        this.s3Operations = s3Operations;
+        this.sqsOperations = sqsOperations;
+        this.ec2Operations = ec2Operations;
+        this.instanceRegistry = new InstanceRegistry(ec2Operations, 10 * 1000);
 
-        this.localApps = new LinkedList<>();
-        localApps.add(new LocalAppData(docsPerWorker, lmQueue, mlQueue, bucket));
+        this.localApps = new CopyOnWriteArrayList<>();
+        localApps.add(new LocalAppData(docsPerWorker, lmQueue, mlQueue, bucket, priority, progressIntervalSeconds, preflight,
+                workerJar, workerJsa));
 
         sqsOperations.createQueue(mwQueue);
         sqsOperations.createQueue(wmQueue);
+
+        this.workerPool = new WorkerPool(instanceRegistry, sqsOperations, mwQueue, wmQueue);
+
+        this.taskScheduler = new TaskScheduler(sqsOperations, mwQueue, workerPool);
+        this.taskSchedulerThread = new Thread(taskScheduler, "task-scheduler");
+        this.preflight = new Preflight();
+
+        // A single thread reads wmQueue and routes every result to its job by id.
+        // Every result frees a slot in the scheduler's window
+        this.resultCollector = new ResultCollector(sqsOperations, wmQueue, jobs, workerPool,
+                this::onWorkerTerminated, taskScheduler::wakeUp);
+        this.resultCollectorThread = new Thread(resultCollector, "result-collector");
+
+        this.scalingController = new ScalingController(sqsOperations, mwQueue, workerPool, MAX_WORKERS,
+                jobs, resultCollector::getResultsCollected);
+        this.scalingScheduler = Executors.newSingleThreadScheduledExecutor();
+        this.stragglerDetector = new StragglerDetector(sqsOperations, mwQueue, jobs, workerPool);
+        this.livenessMonitor = new LivenessMonitor(sqsOperations, mwQueue, jobs, workerPool, instanceRegistry,
+                () -> scalingScheduler.execute(scalingController));
+        this.progressScheduler = Executors.newSingleThreadScheduledExecutor();
+        this.jobScheduler = Executors.newScheduledThreadPool(2);
+
+        Metrics.gauge("manager_workers", "Workers running or launching", workerPool::size);
+        Metrics.gauge("manager_jobs", "Jobs in progress", jobs::size);
     }
 
     public void run() {
         System.out.println("Manager running");
+        terminateOrphanedWorkers();
+        resultCollectorThread.start();
+        taskSchedulerThread.start();
+        scalingScheduler.scheduleWithFixedDelay(scalingController, 0, SCALING_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        scalingScheduler.scheduleWithFixedDelay(stragglerDetector, STRAGGLER_INTERVAL_SECONDS, STRAGGLER_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        scalingScheduler.scheduleWithFixedDelay(livenessMonitor, LIVENESS_INTERVAL_SECONDS, LIVENESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
         while (running) {
             registerNewLocalApps();
 
@@ -69,12 +158,23 @@ public class Manager {
         cleanup();
     }
 
+    // Workers of a manager that crashed listen on its queues and would never get a task
+    public void terminateOrphanedWorkers() {
+        String[] orphans = instanceRegistry.getActiveInstancesWithTag("type", "worker");
+        if (orphans.length > 0) {
+            System.out.println("Terminating " + orphans.length + " workers of a previous manager");
+            instanceRegistry.terminateInstances(Arrays.asList(orphans));
+        }
+    }
+
     public void registerNewLocalApps() {
         sqsOperations.receiveMessages(registerQueue).forEach(this::registerLocalApp);
     }
 
     public void processIncomingMessage(LocalAppData localApp) {
         Message m = sqsOperations.receiveMessage(localApp.getLmQueue());
+        if (m == null)
+            return;
         sqsOperations.changeVisibilityTimeout(localApp.getLmQueue(), m.receiptHandle(), 200);
         process(m, localApp);
     }
@@ -91,9 +191,27 @@ public class Manager {
         String newLmQueue = parts[2];
         String newMlQueue = parts[3];
         String newBucket = parts[4];
-
-        LocalAppData localApp = new LocalAppData(newDocsPerWorker, newLmQueue, newMlQueue, newBucket);
-        localApps.add(localApp);
+        // Local apps that do not send a priority class get NORMAL
+        Priority newPriority = Priority.parse(parts.length > 5 ? parts[5] : null);
+        // Local apps that do not send an interval expect nothing but the final summary on mlQueue
+        int newProgressInterval = parts.length > 6 ? Integer.parseInt(parts[6]) : 0;
+        boolean newPreflight = parts.length > 7 && Boolean.parseBoolean(parts[7]);
+        // Local apps without an artifact bucket keep the jars in their own bucket
+        String newWorkerJar = parts.length > 8 ? parts[8] : "s3://" + newBucket + "/worker.jar";
+        String newWorkerJsa = parts.length > 9 ? parts[9] : "s3://" + newBucket + "/worker.jsa";
+
+        // A local app registers again when another one restarted the manager, it may have been quicker
+        boolean known = false;
+        for (LocalAppData localApp : localApps) {
+            if (localApp.getLmQueue().equals(newLmQueue))
+                known = true;
+        }
+        if (known) {
+            System.out.println("Local app " + newLmQueue + " is already registered");
+        } else {
+            localApps.add(new LocalAppData(newDocsPerWorker, newLmQueue, newMlQueue, newBucket, newPriority,
+                    newProgressInterval, newPreflight, newWorkerJar, newWorkerJsa));
+        }
 
         sqsOperations.deleteMessage(registerQueue, message.receiptHandle());
     }
@@ -109,173 +227,406 @@ public class Manager {
             }
             sqsOperations.sendMessage(localAppData.getMlQueue(), "terminated");
             running = false;
+        } else if (isShardMessage(message)) {
+            processShard(message, localAppData);
+            return;
         } else {
             String body = message.body();
             System.out.println("Processing message: " + body);
 
-            String[] lines = readInputFile(body, localAppData);
-            for (String line : lines) {
-                sqsOperations.sendMessage(mwQueue, line);
+            // The same input always gets the same job id, a manager that takes over the job after
+            // a crash finds the results of the previous one in the checkpoint
+            String jobId = UUID.nameUUIDFromBytes(body.getBytes(StandardCharsets.UTF_8)).toString();
+            if (jobs.containsKey(jobId)) {
+                System.out.println("Job " + jobId + " is already running");
+                return;
             }
 
-            int workersNeeded = (int) Math.ceil((double) lines.length / localAppData.getDocsPerWorker());
-            deployWorkers(workersNeeded, localAppData, message.receiptHandle());
-            waitForWorkers(localAppData);
-
-            String summaryFile = writeSummaryFile(localAppData);
-            sqsOperations.sendMessage(localAppData.getMlQueue(), summaryFile);
+            JobData job = new JobData(jobId, localAppData);
+            job.addInputMessage(0, 1, message.receiptHandle());
+            try {
+                startJob(job, Tracer.extract(message));
+                // The scaling controller starts launching workers as soon as the first batch is queued
+                readInputFile(body, job, 0);
+                if (job.shardRead(0))
+                    job.setInputComplete();
+            } catch (RuntimeException e) {
+                failJob(job, e);
+            }
+            return;
         }
 
         sqsOperations.deleteMessage(localAppData.getLmQueue(), message.receiptHandle());
     }
 
-    public String[] readInputFile(String messageBody, LocalAppData localApp) {
-        String localFilePath = messageBody.split(localApp.getBucket() + "/")[1];
-        s3Operations.downloadFile(localApp.getBucket(), localFilePath, new File(localFilePath));
-        System.out.println("Downloaded file: " + localFilePath);
-        return readFile(localFilePath);
-    }
-
-    public void deployWorkers(int workersNeeded, LocalAppData localApp, String receiptHandle) {
-        long startTime = System.currentTimeMillis();
-
-        int workersUntilNow = 0;
-        while (workersUntilNow < workersNeeded) {
+    // A large input arrives as line-aligned shards, each announced once it is uploaded:
+    // shard\t<input url>\t<index>\t<first task id>\t<shard count, - but for the last shard>\t<shard url>.
+    // All shards are one job. Whichever shard comes first sets the job up, every shard is read by
+    // the thread that received it, while the other shards are still uploading
+    public void processShard(Message message, LocalAppData localAppData) {
+        String body = message.body();
+        System.out.println("Processing shard: " + body);
+
+        String[] parts = body.split("\t");
+        // The local app derives the job id from the input url, as for an input in one piece
+        String jobId = UUID.nameUUIDFromBytes(parts[1].getBytes(StandardCharsets.UTF_8)).toString();
+        int shard = Integer.parseInt(parts[2]);
+        int firstTaskId = Integer.parseInt(parts[3]);
+        int shardCount = parts[4].equals("-") ? -1 : Integer.parseInt(parts[4]);
+        if (failedJobs.containsKey(jobId)) {
+            sqsOperations.deleteMessage(localAppData.getLmQueue(), message.receiptHandle());
+            return;
+        }
 
-            if (System.currentTimeMillis() - startTime > 10 * 1000) {
-                sqsOperations.changeVisibilityTimeout(localApp.getLmQueue(), receiptHandle, 200);
-                startTime = System.currentTimeMillis();
+        JobData job = null;
+        try {
+            boolean added;
+            // The checkpoint has to be restored before any shard is read
+            synchronized (jobs) {
+                job = jobs.get(jobId);
+                boolean first = job == null;
+                if (first)
+                    job = new JobData(jobId, localAppData);
+                added = job.addInputMessage(shard, shardCount, message.receiptHandle());
+                if (first)
+                    startJob(job, Tracer.extract(message));
             }
 
-            gatherResults(localApp);
-
-            synchronized (lock) {
-                if (workers.size() < MAX_WORKERS) {
-                    deployWorker(workersUntilNow, localApp.getDocsPerWorker(), localApp.getBucket());
-                    workersUntilNow++;
-                }
+            if (added) {
+                readInputFile(parts[5], job, firstTaskId);
+                if (job.shardRead(shard))
+                    job.setInputComplete();
+            } else {
+                System.out.println("Job " + jobId + ": shard " + shard + " is already read");
             }
+        } catch (RuntimeException e) {
+            // A shard that cannot be read fails the whole job
+            failJob(job, e);
         }
     }
 
-    public void waitForWorkers(LocalAppData localApp) {
-        while (!workers.isEmpty()) {
-            gatherResults(localApp);
+    // parent is the local app's span of the job, if its message carried one
+    public void startJob(JobData job, Tracer.Context parent) {
+        LocalAppData localAppData = job.getLocalApp();
+        job.setSpan(TRACER.start("job", parent).tag("job", job.getId()));
+        // Rows are streamed to S3 as results arrive, so the summary is ready right after the last one
+        job.setSummaryWriter(new SummaryWriter(s3Operations, localAppData.getBucket(), "summary-" + job.getId() + ".html"));
+        jobs.put(job.getId(), job);
+
+        int interval = localAppData.getProgressIntervalSeconds();
+        if (interval > 0) {
+            ProgressPublisher progressPublisher = new ProgressPublisher(s3Operations, sqsOperations, job);
+            job.setProgress(progressPublisher,
+                    progressScheduler.scheduleWithFixedDelay(progressPublisher, interval, interval, TimeUnit.SECONDS));
         }
+
+        JobCheckpoint checkpoint = new JobCheckpoint(s3Operations, localAppData.getBucket(), job.getId());
+        int restored = checkpoint.restore(job);
+        if (restored > 0)
+            System.out.println("Job " + job.getId() + ": resumed with " + restored + " results from the checkpoint");
+        job.setCheckpoint(checkpoint);
+
+        job.setMaintenance(jobScheduler.scheduleWithFixedDelay(() -> maintain(job),
+                MAINTENANCE_INTERVAL_SECONDS, MAINTENANCE_INTERVAL_SECONDS, TimeUnit.SECONDS));
+        // A failed job completes exceptionally and has no summary
+        CompletableFuture<Void> finished = job.getCompletion().thenAcceptAsync(this::finishJob, jobScheduler);
+        finishing.add(finished);
+        finished.whenComplete((result, error) -> finishing.remove(finished));
     }
 
-    public String writeSummaryFile(LocalAppData localApp) {
-        String summaryFile = "summary-" + UUID.randomUUID() + ".html";
-        String resultsFormatted = "<html><body>" + String.join("\n", localApp.getResults()) + "</body></html>";
+    private void maintain(JobData job) {
+        try {
+            System.out.println("Job " + job.getId() + ": " + job.getResultsReceived() + "/" + job.getTasksCount());
+            extendInputMessages(job);
+            job.getCheckpoint().flush();
+        } catch (Exception e) {
+            // The next round tries again, input messages stay invisible for 200 seconds
+            System.err.println("Job " + job.getId() + ": maintenance failed: " + e.getMessage());
+        }
+    }
 
-        // create file locally:
-        FileWriter writer;
+    // Undoes whatever startJob got to and tells the local app: failed\t<jobId>\t<reason>. The input
+    // messages are deleted, a missing or unreadable input would only fail the same way again
+    public void failJob(JobData job, Exception cause) {
+        if (!job.fail(cause))
+            return;
+        System.err.println("Job " + job.getId() + " failed: " + cause);
+        long now = System.currentTimeMillis();
+        failedJobs.values().removeIf(failedAt -> now - failedAt > FAILED_JOB_TTL_MILLIS);
+        failedJobs.put(job.getId(), now);
+        jobs.remove(job.getId(), job);
+        taskScheduler.cancel(job);
+        Metrics.counter("manager_jobs_failed_total", "Jobs given up on without a summary").inc();
+
+        LocalAppData localAppData = job.getLocalApp();
         try {
-            writer = new FileWriter(summaryFile);
-            writer.write(resultsFormatted);
-            writer.close();
-        } catch (IOException e) { e.printStackTrace(); }
+            if (job.getMaintenance() != null)
+                job.getMaintenance().cancel(false);
+            if (job.getProgressReports() != null)
+                job.getProgressReports().cancel(false);
+            if (job.getSummaryWriter() != null)
+                job.getSummaryWriter().abort();
+            if (job.getSpan() != null)
+                job.getSpan().tag("error", String.valueOf(cause)).end();
+
+            String reason = cause.getMessage() == null ? cause.getClass().getSimpleName() : cause.getMessage();
+            sqsOperations.sendMessage(localAppData.getMlQueue(), "failed\t" + job.getId() + "\t" + reason);
+            for (String receiptHandle : job.getInputMessages()) {
+                sqsOperations.deleteMessage(localAppData.getLmQueue(), receiptHandle);
+            }
+            if (job.getCheckpoint() != null)
+                job.getCheckpoint().delete();
+        } catch (Exception e) {
+            // The input messages come back then, and the job is tried again
+            System.err.println("Could not clean up after job " + job.getId() + ": " + e.getMessage());
+        }
+    }
 
-        // upload file to s3
-        s3Operations.uploadFile(localApp.getBucket(), summaryFile, new File(summaryFile));
+    // Runs on the job scheduler once the last result is in
+    public void finishJob(JobData job) {
+        try {
+            writeSummary(job);
+        } catch (RuntimeException e) {
+            failJob(job, e);
+        }
+    }
 
-        return summaryFile;
+    private void writeSummary(JobData job) {
+        LocalAppData localAppData = job.getLocalApp();
+        job.getMaintenance().cancel(false);
+        jobs.remove(job.getId());
+
+        Tracer.Span span = TRACER.start("write_summary", job.getSpan().context());
+        Tracer.Scope scope = span.makeCurrent();
+        // One last report with the final counts and the rows since the previous one
+        if (job.getProgressReports() != null) {
+            job.getProgressReports().cancel(false);
+            job.getProgressPublisher().run();
+        }
+
+        job.getSummaryWriter().appendStats(statsLine(job));
+        String summaryFile = job.getSummaryWriter().finish();
+        Metrics.histogram("manager_job_seconds", "Time from the first input message of a job to its summary", JOB_BUCKETS)
+                .observe((System.currentTimeMillis() - job.getStartedAt()) / 1000.0);
+        sqsOperations.sendMessage(localAppData.getMlQueue(), summaryFile);
+        scope.close();
+        span.end();
+        job.getSpan().tag("tasks", String.valueOf(job.getTasksCount())).tag("failed", String.valueOf(job.getFailedResults())).end();
+
+        // The checkpoint is needed until the input messages are gone, a crash before that resends the summary
+        for (String receiptHandle : job.getInputMessages()) {
+            sqsOperations.deleteMessage(localAppData.getLmQueue(), receiptHandle);
+        }
+        job.getCheckpoint().delete();
     }
 
-    public void deployWorker(int id, int filesCapacity, String bucket){
-        workers.add(id);
+    // Reads the input, or one shard of it, whose first line is task firstTaskId
+    public void readInputFile(String url, JobData job, int firstTaskId) {
+        String bucket = job.getLocalApp().getBucket();
+        String key = url.split(bucket + "/")[1];
 
-        String script = String.format("#!/bin/bash\ncd /home/ec2-user\naws s3 cp s3://%s/worker.jar .\njava -jar worker.jar %d %d %s %s %s ", bucket, id, filesCapacity, bucket, mwQueue, wmQueue);
+        // Stream the input line by line, lines only wait in the scheduler until it releases them. A job
+        // with enough tasks waiting there pauses the read, the rest of the input stays in S3 until then
+        List<String> batch = new ArrayList<>(TASK_BATCH_SIZE);
+        int taskId = firstTaskId;
+        int queued = 0;
+        long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        Tracer.Context jobContext = job.getSpan().context();
+        Tracer.Span span = TRACER.start("read_input", jobContext).tag("key", key).tag("first_task", String.valueOf(firstTaskId));
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(s3Operations.getFileStream(bucket, key), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (System.currentTimeMillis() - startTime > 10 * 1000) {
+                    extendInputMessages(job);
+                    job.getCheckpoint().flush();
+                    startTime = System.currentTimeMillis();
+                }
 
-        ec2Operations.runInstances(script, 1, 1,
-                Arrays.asList(
-                        Tag.builder().key("type").value("worker").build(),
-                        Tag.builder().key("worker-id").value(String.valueOf(id) + "-" + bucket).build()
-                ));
-    }
+                String task = line.trim();
+                if (task.isEmpty())
+                    continue;
 
-    public void gatherResults(LocalAppData localApp) {
-        System.out.println(workersToString());
-        List<Message> messages = sqsOperations.receiveMessages(wmQueue);
-        for (Message message : messages) {
-            sqsOperations.deleteMessage(wmQueue, message.receiptHandle());
-            System.out.println("Received message: " + message.body());
-
-            int id = terminatedMessageID(message);
-            if (id != -1) {
-                System.out.println("Received terminate message");
-                cleanupWorker(id, localApp.getBucket());
-                workers.remove((Integer) id);
-                continue;
+                // Tasks restored from the checkpoint are not dispatched again
+                if (job.isTaskCompleted(taskId)) {
+                    taskId++;
+                    continue;
+                }
+
+                // <action>\t<pdfUrl>, anything else is answered here and never reaches a worker
+                String[] fields = task.split("\t");
+                if (fields.length != 2 || fields[0].trim().isEmpty() || fields[1].trim().isEmpty()) {
+                    job.addTasks(1);
+                    job.rejectTask(taskId++, fields[0], fields.length > 1 ? fields[1] : "",
+                            "Malformed input line, expected an action and a PDF URL separated by a tab");
+                    continue;
+                }
+
+                // Neither are lines identical to an earlier one, they get its result
+                if (!job.addLine(taskId, task)) {
+                    taskId++;
+                    continue;
+                }
+
+                // Ends with the task's result, the worker's spans are its children. Held per task until
+                // then, so only if it is exported
+                if (Tracer.isExporting())
+                    job.addTaskSpan(taskId, TRACER.start("task", jobContext).tag("task", String.valueOf(taskId)).tag("line", task));
+                batch.add(job.taskMessage(taskId++, task));
+                if (batch.size() == TASK_BATCH_SIZE) {
+                    queued = enqueueTasks(job, batch, queued);
+                    taskScheduler.awaitRoom(job);
+                    // A job that failed in the meantime is not read any further
+                    if (job.isComplete())
+                        break;
+                }
             }
+            enqueueTasks(job, batch, queued);
+        } catch (IOException e) {
+            // A partly read input would give a summary with rows missing
+            throw new UncheckedIOException("Error reading input file " + key, e);
+        }
+        // Tasks go out while the input is read, this is the time until the last one is queued
+        Metrics.histogram("manager_input_read_seconds", "Time to read an input file or shard and queue its tasks").observeSince(startNanos);
+        span.tag("lines", String.valueOf(taskId - firstTaskId)).end();
+
+        System.out.println("Read input file: " + key + " (" + (taskId - firstTaskId) + " lines, " + job.getDuplicateTasks() + " duplicates)");
+    }
 
-            String row = formatAsHTML(message.body());
-            localApp.addResult(row);
+    // Returns the number of tasks queued for the job so far
+    public int enqueueTasks(JobData job, List<String> batch, int queued) {
+        if (batch.isEmpty())
+            return queued;
+
+        int size = batch.size();
+        job.addTasks(size);
+        Metrics.counter("manager_tasks_queued_total", "Tasks read from inputs, duplicate lines excluded").inc(size);
+        if (job.getLocalApp().isPreflight()) {
+            for (String task : batch) {
+                preflight(job, task);
+            }
+        } else {
+            taskScheduler.submit(job, batch);
         }
+        batch.clear();
+
+        // Workers start launching as soon as the job has work, later batches wait for the next round
+        if (queued == 0)
+            scalingScheduler.execute(scalingController);
+        return queued + size;
     }
 
-    public void cleanupWorker(int id, String bucket) {
-        // It will be one instance per worker
-        String[] instances = ec2Operations.getAllInstancesWithTag("worker-id", String.valueOf(id) + "-" + bucket);
-        for (String instance : instances) {
-            ec2Operations.terminateInstance(instance);
+    // The task reaches the scheduler with its size once the HEAD request is answered
+    public void preflight(JobData job, String task) {
+        // <jobId>\t<taskId>\t<bucket>\t<action>\t<pdfUrl>
+        String[] parts = task.split("\t", 5);
+        if (parts.length < 5) {
+            taskScheduler.submit(job, task, -1);
+            return;
         }
+
+        long startNanos = System.nanoTime();
+        preflight.check(parts[4]).whenComplete((result, error) -> {
+            boolean rejected = error == null && result.getRejection() != null;
+            Metrics.histogram("manager_preflight_seconds", "HEAD requests of preflight, by whether the document was rejected",
+                    "outcome", error != null ? "error" : rejected ? "rejected" : "accepted").observeSince(startNanos);
+            if (rejected)
+                job.rejectTask(Integer.parseInt(parts[1]), parts[3], parts[4], result.getRejection());
+            else
+                taskScheduler.submit(job, task, error == null ? result.getSize() : -1);
+        });
     }
 
-    public String workersToString(){
-        StringBuilder sb = new StringBuilder();
-        for (Integer worker : workers) {
-            sb.append(worker).append(";");
+    // Every input message of a running job stays invisible, all shards included
+    public void extendInputMessages(JobData job) {
+        for (String receiptHandle : job.getInputMessages()) {
+            sqsOperations.changeVisibilityTimeout(job.getLocalApp().getLmQueue(), receiptHandle, 200);
         }
-        return sb.toString();
     }
 
-    public String formatAsHTML(String line) {
-        return "<p>" + line + "</p>";
+    public String statsLine(JobData job) {
+        int lines = job.getTasksCount();
+        int duplicates = job.getDuplicateTasks();
+        double ratio = lines == 0 ? 0 : 100.0 * duplicates / lines;
+        return String.format("Lines: %d, unique: %d, duplicates: %d (%.1f%%), failed: %d",
+                lines, lines - duplicates, duplicates, ratio, job.getFailedResults());
     }
 
-    public int terminatedMessageID(Message message) {
-        if (isTerminateMessage(message))
-            return Integer.parseInt(message.body().split("\t")[1]);
-        return -1;
+    public void onWorkerTerminated(String id) {
+        workerPool.onWorkerTerminated(id);
+        // Let the controller replace the worker right away if there is still work
+        scalingScheduler.execute(scalingController);
     }
 
     public boolean isTerminateMessage(Message message) {
         return message.body().startsWith("terminate");
     }
 
-    public String[] readFile(String filename) {
-        try {
-            File file = new File(filename);
-            if (!file.exists())
-                throw new FileNotFoundException("File not found: " + filename);
-
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-            return reader.lines().toArray(String[]::new);
-        } catch (Exception e) {
-            System.err.println("Error reading file: " + e.getMessage());
-            return new String[0];
-        }
+    public boolean isShardMessage(Message message) {
+        return message.body().startsWith("shard\t");
     }
 
-
     public void cleanup() {
+        // Let the jobs that are still running finish before the queues go away: every input is read
+        // once the pool is done, and every summary is sent once finishing is
+        threadPool.shutdown();
+        try { threadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS); }
+        catch (InterruptedException e) { e.printStackTrace(); }
+        try { CompletableFuture.allOf(finishing.toArray(new CompletableFuture[0])).join(); }
+        catch (CompletionException e) { /* failed jobs were reported by failJob */ }
+        jobScheduler.shutdown();
+
+        resultCollector.stop();
+        taskScheduler.stop();
+        preflight.shutdown();
+        scalingScheduler.shutdown();
+        progressScheduler.shutdown();
+        workerPool.shutdown();
+
         sqsOperations.deleteQueue(mwQueue);
         sqsOperations.deleteQueue(wmQueue);
 
-        threadPool.shutdown();
+        // The last dump goes out before the instance is gone
+        Metrics.stopExport();
+        Tracer.stopExport();
+        instanceRegistry.terminateInstancesWithTag("type", "manager");
+    }
 
-        String[] managers = ec2Operations.getAllInstancesWithTag("type", "manager");
-        for (String manager : managers) {
-            ec2Operations.terminateInstance(manager);
-        }
+    // Builds the clients without touching the network, so that an AppCDS archive dumped
+    // at exit holds the classes the manager loads at startup (see the cds profile)
+    public static void cdsTraining() {
+        Region region = Region.US_EAST_1;
+        new S3Operations(region);
+        new SQSOperations(region);
+        new EC2Operations(region);
+        System.out.println("CDS training done");
     }
 
     public static void main(String[] args) {
-        if (args.length != 4)
-            throw new RuntimeException("Usage: Manager <docsPerWorker> <lmQueue> <mlQueue> <bucket>");
-        Manager manager = new Manager(Integer.parseInt(args[0]), args[1], args[2], args[3]);
+        if (args.length == 1 && args[0].equals("--cds-training")) {
+            cdsTraining();
+            return;
+        }
+        Region region = Region.US_EAST_1;
+        S3Operations s3Operations = new S3Operations(region);
+        Manager manager = fromArgs(args, s3Operations, new SQSOperations(region), new EC2Operations(region));
+        // The dumps of the workers go under the same prefix
+        Metrics.startExport(manager.mwQueue + "/manager", () -> s3Operations);
+        Tracer.startExport(manager.mwQueue + "/manager", () -> s3Operations);
         manager.run();
     }
 
+    // The command line of the manager instance, the load test starts managers in-process from the same user data
+    public static Manager fromArgs(String[] args, S3Operations s3Operations, SQSOperations sqsOperations, EC2Operations ec2Operations) {
+        if (args.length < 4 || args.length > 9)
+            throw new RuntimeException("Usage: Manager <docsPerWorker> <lmQueue> <mlQueue> <bucket> [high|normal|low] [progressIntervalSeconds] [preflight] [workerJarUrl workerJsaUrl]");
+        Priority priority = Priority.parse(args.length >= 5 ? args[4] : null);
+        int progressInterval = args.length >= 6 ? Integer.parseInt(args[5]) : 0;
+        boolean preflight = args.length >= 7 && Boolean.parseBoolean(args[6]);
+        String workerJar = args.length >= 9 ? args[7] : "s3://" + args[3] + "/worker.jar";
+        String workerJsa = args.length >= 9 ? args[8] : "s3://" + args[3] + "/worker.jsa";
+        return new Manager(Integer.parseInt(args[0]), args[1], args[2], args[3], priority, progressInterval, preflight,
+                workerJar, workerJsa, s3Operations, sqsOperations, ec2Operations);
+    }
+
 }
@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Sends a HEAD request for every PDF before it is dispatched. The size lets the scheduler send the
+// biggest documents first, so they do not become the tail of the job, and URLs that are certainly
+// dead are answered right away instead of costing a worker a download attempt
+public class Preflight {
+
+    private static final int CONCURRENCY = 16;
+    private static final int TIMEOUT_MILLIS = 5 * 1000;
+
+    public static class Result {
+        // -1 if the server did not say
+        private final long size;
+        // null if the URL may be processed
+        private final String rejection;
+
+        private Result(long size, String rejection) {
+            this.size = size;
+            this.rejection = rejection;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getRejection() {
+            return rejection;
+        }
+    }
+
+    private final ExecutorService executor;
+
+    public Preflight() {
+        this.executor = Executors.newFixedThreadPool(CONCURRENCY, runnable -> {
+            Thread thread = new Thread(runnable, "preflight");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public CompletableFuture<Result> check(String pdfUrl) {
+        return CompletableFuture.supplyAsync(() -> head(pdfUrl), executor);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Result head(String pdfUrl) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(pdfUrl).openConnection();
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+
+            int status = connection.getResponseCode();
+            // Only answers that say the document is gone. Many servers refuse HEAD (403, 405) or
+            // redirect across protocols, the worker still gets a chance with those
+            if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE)
+                return new Result(-1, "Rejected before processing: HTTP " + status);
+
+            String type = connection.getContentType();
+            if (status == HttpURLConnection.HTTP_OK && type != null && type.startsWith("text/html"))
+                return new Result(-1, "Rejected before processing: not a PDF (" + type + ")");
+
+            return new Result(status == HttpURLConnection.HTTP_OK ? connection.getContentLengthLong() : -1, null);
+        } catch (UnknownHostException e) {
+            return new Result(-1, "Rejected before processing: unknown host " + e.getMessage());
+        } catch (IOException | ClassCastException | IllegalArgumentException e) {
+            // Timeouts and other protocols are not proof the URL is dead
+            return new Result(-1, null);
+        } finally {
+            if (connection != null)
+                connection.disconnect();
+        }
+    }
+
+}
@@ -0,0 +1,30 @@
+public enum Priority {
+
+    // Share of the task queue a local app gets relative to the others while they all have work
+    HIGH(4),
+    NORMAL(2),
+    LOW(1);
+
+    private final int weight;
+
+    Priority(int weight) {
+        this.weight = weight;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    // Unknown or missing classes fall back to NORMAL, older local apps do not send one
+    public static Priority parse(String name) {
+        if (name == null)
+            return NORMAL;
+        try {
+            return Priority.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown priority " + name + ", using " + NORMAL);
+            return NORMAL;
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+import operations.S3Operations;
+import operations.SQSOperations;
+
+// Reports a job's progress to its local app while the job runs. Every report carries the counts
+// and, if there are new rows, the key of a chunk object holding the rows since the last report:
+// progress\t<jobId>\t<seq>\t<completed>\t<failed>\t<total>\t<chunkKey or ->. The job id tells the
+// jobs of a local app apart, the final summary key carries it as well
+public class ProgressPublisher implements Runnable {
+
+    private final S3Operations s3Operations;
+    private final SQSOperations sqsOperations;
+    private final JobData job;
+
+    // mlQueue is not FIFO, the local app puts the chunks back in order by this number
+    private int seq = 0;
+
+    public ProgressPublisher(S3Operations s3Operations, SQSOperations sqsOperations, JobData job) {
+        this.s3Operations = s3Operations;
+        this.sqsOperations = sqsOperations;
+        this.job = job;
+        job.getSummaryWriter().enableChunks();
+    }
+
+    @Override
+    public synchronized void run() {
+        try {
+            publish();
+        } catch (Exception e) {
+            // Progress is best effort, the rows stay in the summary either way
+            System.err.println("Failed to publish progress of job " + job.getId() + ": " + e.getMessage());
+        }
+    }
+
+    private void publish() {
+        LocalAppData localApp = job.getLocalApp();
+
+        String chunk = job.getSummaryWriter().takeChunk();
+        String chunkKey = "-";
+        if (!chunk.isEmpty()) {
+            chunkKey = "summary-" + job.getId() + "-" + seq + ".html";
+            s3Operations.uploadContentAsFile(localApp.getBucket(), chunkKey, chunk);
+        }
+
+        sqsOperations.sendMessage(localApp.getMlQueue(), String.format("progress\t%s\t%d\t%d\t%d\t%d\t%s",
+                job.getId(), seq, job.getResultsReceived(), job.getFailedResults(), job.getTasksCount(), chunkKey));
+        seq++;
+    }
+
+}
@@ -0,0 +1,142 @@
+import operations.Metrics;
+import operations.SQSOperations;
+import operations.Tracer;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class ResultCollector implements Runnable {
+
+    private final SQSOperations sqsOperations;
+    private final String wmQueue;
+
+    // Long polling keeps the collector idle while there is nothing to collect
+    private static final int WAIT_TIME_SECONDS = 20;
+
+    private final Map<String, JobData> jobs;
+    private final WorkerPool workerPool;
+    private final Consumer<String> onWorkerTerminated;
+    private final Runnable onResult;
+
+    private final AtomicLong resultsCollected = new AtomicLong(0);
+
+    private static final Tracer TRACER = new Tracer("manager");
+
+    private volatile boolean running = true;
+
+    public ResultCollector(SQSOperations sqsOperations, String wmQueue, Map<String, JobData> jobs,
+                           WorkerPool workerPool, Consumer<String> onWorkerTerminated, Runnable onResult) {
+        this.sqsOperations = sqsOperations;
+        this.wmQueue = wmQueue;
+        this.jobs = jobs;
+        this.workerPool = workerPool;
+        this.onWorkerTerminated = onWorkerTerminated;
+        this.onResult = onResult;
+    }
+
+    @Override
+    public void run() {
+        System.out.println("Result collector running");
+        // Every job's results come through this thread, nothing may end it but stop()
+        while (running) {
+            List<Message> messages;
+            try {
+                messages = sqsOperations.receiveMessages(wmQueue, WAIT_TIME_SECONDS);
+            } catch (Exception e) {
+                System.err.println("[results] receive failed, retrying: " + e.getMessage());
+                try { Thread.sleep(1000); } catch (InterruptedException ie) { return; }
+                continue;
+            }
+
+            for (Message message : messages) {
+                try {
+                    sqsOperations.deleteMessage(wmQueue, message.receiptHandle());
+                    System.out.println("Received message: " + message.body());
+                    route(message.body(), Tracer.extract(message));
+                } catch (Exception e) {
+                    // Deleted first, a body that cannot be routed would only fail again
+                    System.err.println("[results] could not handle " + message.body() + ": " + e);
+                    Metrics.counter("manager_result_errors_total", "wmQueue messages the collector failed to handle").inc();
+                }
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public long getResultsCollected() {
+        return resultsCollected.get();
+    }
+
+    public void route(String body) {
+        route(body, null);
+    }
+
+    // context is the span the worker sent the message in
+    public void route(String body, Tracer.Context context) {
+        // register\t<workerId>\t<millisSinceJvmStart>
+        if (body.startsWith("register\t")) {
+            String[] parts = body.split("\t");
+            workerPool.onWorkerRegistered(parts[1], Long.parseLong(parts[2]));
+            return;
+        }
+
+        // startup\t<workerId>\t<millisFromJvmStartToFirstMessage>
+        if (body.startsWith("startup\t")) {
+            String[] parts = body.split("\t");
+            workerPool.onWorkerStartup(parts[1], Long.parseLong(parts[2]));
+            return;
+        }
+
+        // heartbeat\t<workerId>\t<docsWorkedOn>\t<jobId>\t<taskId>\t<receiptHandle>, task fields are - while idle
+        if (body.startsWith("heartbeat\t")) {
+            String[] parts = body.split("\t");
+            boolean busy = parts.length == 6 && !parts[3].equals("-");
+            workerPool.onHeartbeat(parts[1], Integer.parseInt(parts[2]),
+                    busy ? parts[3] : null, busy ? Integer.parseInt(parts[4]) : -1, busy ? parts[5] : null);
+            return;
+        }
+
+        // terminate\t<workerId>
+        if (body.startsWith("terminate\t")) {
+            System.out.println("Received terminate message");
+            onWorkerTerminated.accept(body.split("\t")[1]);
+            return;
+        }
+
+        // <jobId>\t<taskId>\t<elapsedMillis>\t<action>\t<pdfUrl>\t<output or error>
+        String[] parts = body.split("\t", 6);
+        if (parts.length < 6) {
+            System.err.println("Malformed result: " + body);
+            return;
+        }
+
+        JobData job = jobs.get(parts[0]);
+        if (job == null) {
+            System.out.println("Result for unknown job " + parts[0] + ", dropping");
+            return;
+        }
+
+        // Writing the row, the checkpoint and ending the task's span
+        Tracer.Span span = TRACER.start("collect_result", context).tag("task", parts[1]);
+        boolean first = job.addResult(Integer.parseInt(parts[1]), parts[3], parts[4], parts[5]);
+        span.tag("duplicate", String.valueOf(!first)).end();
+        if (first) {
+            long elapsed = Long.parseLong(parts[2]);
+            job.recordRuntime(elapsed);
+            // Worker time only, the worker's own metrics break it down by stage
+            Metrics.histogram("manager_task_seconds", "Worker time of a task as reported with its result",
+                    "action", parts[3], "outcome", parts[5].startsWith("s3://") ? "success" : "failure").observe(elapsed / 1000.0);
+            resultsCollected.incrementAndGet();
+            onResult.run();
+        } else {
+            Metrics.counter("manager_duplicate_results_total", "Results of tasks that already had one, redelivered or speculative").inc();
+        }
+    }
+
+}
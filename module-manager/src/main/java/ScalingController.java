@@ -0,0 +1,168 @@
+import operations.SQSOperations;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+public class ScalingController implements Runnable {
+
+    // How soon the fleet should be able to drain the backlog at the measured rate
+    private static final long TARGET_DRAIN_MILLIS = 5 * 60 * 1000;
+
+    // Scaling up is cheap to undo, scaling down throws away booted instances
+    private static final long SCALE_UP_COOLDOWN_MILLIS = 30 * 1000;
+    private static final long SCALE_DOWN_COOLDOWN_MILLIS = 2 * 60 * 1000;
+
+    // Weight of the newest sample in the per-worker throughput average
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final SQSOperations sqsOperations;
+    private final String mwQueue;
+    private final WorkerPool workerPool;
+    private final int maxWorkers;
+
+    private final Map<String, JobData> jobs;
+    private final LongSupplier resultsCollected;
+
+    private long lastScaleUp = 0;
+    private long lastScaleDown = 0;
+    // When the fleet was first seen above the target, 0 while it is not
+    private long surplusSince = 0;
+
+    // Measured results per worker per millisecond, negative until there is a sample
+    private double perWorkerRate = -1;
+    private long lastResults = 0;
+    private long lastEvaluation = 0;
+
+    public ScalingController(SQSOperations sqsOperations, String mwQueue, WorkerPool workerPool, int maxWorkers,
+                             Map<String, JobData> jobs, LongSupplier resultsCollected) {
+        this.sqsOperations = sqsOperations;
+        this.mwQueue = mwQueue;
+        this.workerPool = workerPool;
+        this.maxWorkers = maxWorkers;
+        this.jobs = jobs;
+        this.resultsCollected = resultsCollected;
+    }
+
+    @Override
+    public synchronized void run() {
+        try {
+            evaluate();
+        } catch (Exception e) {
+            // Keep the schedule alive, the next round will try again
+            System.err.println("[scaling] evaluation failed: " + e.getMessage());
+        }
+    }
+
+    private void evaluate() {
+        long now = System.currentTimeMillis();
+        int current = workerPool.size();
+
+        Map<QueueAttributeName, String> attributes = sqsOperations.getQueueAttributes(mwQueue,
+                QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES,
+                QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_NOT_VISIBLE);
+        int waiting = parseCount(attributes.get(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES));
+        int inFlight = parseCount(attributes.get(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_NOT_VISIBLE));
+        // Queue counts are approximate and lag behind sends, the jobs know what is still missing
+        int backlog = Math.max(waiting + inFlight, remainingTasks());
+
+        updateRate(now, current);
+        int desired = desiredWorkers(backlog);
+
+        String action = "hold";
+        if (desired > current) {
+            surplusSince = 0;
+            if (now - lastScaleUp >= SCALE_UP_COOLDOWN_MILLIS || current == 0) {
+                LocalAppData target = busiestLocalApp();
+                if (target != null) {
+                    workerPool.launch(desired - current, target.getWorkerJar(), target.getWorkerJsa());
+                    lastScaleUp = now;
+                    action = "scale up by " + (desired - current);
+                }
+            } else {
+                action = "scale up cooling down";
+            }
+        } else if (desired > 0 && desired < current - 1) {
+            // Hysteresis: a surplus of a single worker is tolerated. Without any job the warm
+            // workers are kept for the next one and retire on their own once idle
+            if (surplusSince == 0)
+                surplusSince = now;
+
+            if (now - surplusSince >= SCALE_DOWN_COOLDOWN_MILLIS && now - lastScaleDown >= SCALE_DOWN_COOLDOWN_MILLIS) {
+                int retired = workerPool.retire(current - desired);
+                lastScaleDown = now;
+                surplusSince = 0;
+                action = "scale down by " + retired + (retired < current - desired ? " of " + (current - desired) + ", the others are busy" : "");
+            } else {
+                action = "scale down pending";
+            }
+        } else {
+            surplusSince = 0;
+        }
+
+        System.out.println(String.format("[scaling] waiting=%d inFlight=%d workers=%d rate=%s desired=%d -> %s",
+                waiting, inFlight, current, rateToString(), desired, action));
+    }
+
+    private int desiredWorkers(int backlog) {
+        if (backlog == 0 || jobs.isEmpty())
+            return 0;
+
+        // The strictest docs-per-worker among the running jobs sets the upper bound
+        int docsPerWorker = Integer.MAX_VALUE;
+        for (JobData job : jobs.values()) {
+            docsPerWorker = Math.min(docsPerWorker, job.getLocalApp().getDocsPerWorker());
+        }
+        int desired = (int) Math.ceil((double) backlog / docsPerWorker);
+
+        // Once the throughput is known, do not launch more workers than needed to drain the backlog in time
+        if (perWorkerRate > 0) {
+            int byRate = (int) Math.ceil(backlog / (perWorkerRate * TARGET_DRAIN_MILLIS));
+            desired = Math.min(desired, byRate);
+        }
+
+        return Math.max(1, Math.min(desired, maxWorkers));
+    }
+
+    private void updateRate(long now, int current) {
+        long results = resultsCollected.getAsLong();
+        if (lastEvaluation != 0 && current > 0 && results > lastResults) {
+            double sample = (double) (results - lastResults) / ((now - lastEvaluation) * current);
+            perWorkerRate = perWorkerRate < 0 ? sample : RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * perWorkerRate;
+        }
+        lastResults = results;
+        lastEvaluation = now;
+    }
+
+    // New workers run the jar of the job with the most work left
+    private LocalAppData busiestLocalApp() {
+        JobData busiest = null;
+        for (JobData job : jobs.values()) {
+            if (busiest == null || remaining(job) > remaining(busiest))
+                busiest = job;
+        }
+        return busiest == null ? null : busiest.getLocalApp();
+    }
+
+    private int remainingTasks() {
+        int remaining = 0;
+        for (JobData job : jobs.values()) {
+            remaining += remaining(job);
+        }
+        return remaining;
+    }
+
+    // Duplicate lines and restored results need no worker time
+    private int remaining(JobData job) {
+        return job.getOutstandingTasks();
+    }
+
+    private String rateToString() {
+        return perWorkerRate < 0 ? "n/a" : String.format("%.2f/min", perWorkerRate * 60 * 1000);
+    }
+
+    private int parseCount(String value) {
+        return value == null ? 0 : Integer.parseInt(value);
+    }
+
+}
@@ -0,0 +1,69 @@
+import operations.Metrics;
+import operations.SQSOperations;
+
+import java.util.List;
+import java.util.Map;
+
+// Copies the tasks that hold a job up at its end. Once every task of a job went out and workers are
+// left without work, a task that is out for much longer than the job's tasks usually take is sent
+// to mwQueue a second time. Whichever copy answers first is the result, JobData drops the other one
+public class StragglerDetector implements Runnable {
+
+    // A task is a straggler once it is out for this many times the 90th percentile run time
+    private static final double STRAGGLER_FACTOR = 3.0;
+    private static final double PERCENTILE = 0.9;
+    // Never copy a task that is out for less, a short job's distribution says little
+    private static final long MIN_STRAGGLER_MILLIS = 30 * 1000;
+    private static final int MIN_SAMPLES = 10;
+
+    private final SQSOperations sqsOperations;
+    private final String mwQueue;
+    private final Map<String, JobData> jobs;
+    private final WorkerPool workerPool;
+
+    private long speculated = 0;
+
+    public StragglerDetector(SQSOperations sqsOperations, String mwQueue, Map<String, JobData> jobs, WorkerPool workerPool) {
+        this.sqsOperations = sqsOperations;
+        this.mwQueue = mwQueue;
+        this.jobs = jobs;
+        this.workerPool = workerPool;
+    }
+
+    @Override
+    public synchronized void run() {
+        try {
+            detect();
+        } catch (Exception e) {
+            System.err.println("[straggler] detection failed: " + e.getMessage());
+        }
+    }
+
+    private void detect() {
+        // Copies only go to workers that would otherwise wait, never ahead of first attempts
+        int idle = workerPool.size();
+        for (JobData job : jobs.values()) {
+            idle -= job.getOutstandingTasks();
+        }
+
+        for (JobData job : jobs.values()) {
+            if (idle <= 0)
+                return;
+            if (!job.isFullyReleased() || job.getRuntimeSamples() < MIN_SAMPLES)
+                continue;
+
+            long threshold = Math.max(MIN_STRAGGLER_MILLIS, (long) (STRAGGLER_FACTOR * job.runtimePercentile(PERCENTILE)));
+            List<String> stragglers = job.takeStragglers(threshold, idle);
+            if (stragglers.isEmpty())
+                continue;
+
+            sqsOperations.sendMessages(mwQueue, stragglers);
+            Metrics.counter("manager_tasks_speculated_total", "Straggling tasks sent to mwQueue a second time").inc(stragglers.size());
+            idle -= stragglers.size();
+            speculated += stragglers.size();
+            System.out.println(String.format("[straggler] job %s: copied %d tasks out for more than %dms (%d copies so far)",
+                    job.getId(), stragglers.size(), threshold, speculated));
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+import operations.S3Operations;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Writes the summary of a job in input order, <p>action\tpdfUrl\toutput</p> per input line, as one
+// multipart upload. Task ids are the line numbers of the input, rows are held by ranges of RANGE_SIZE
+// task ids and a range is written once it and every range before it have all their rows
+public class SummaryWriter {
+
+    // S3 rejects parts smaller than 5 MB, except for the last one
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    private static final int RANGE_SIZE = 1000;
+    // Results arrive roughly in input order, so few ranges are open at a time. A task that holds up
+    // its range while later ones complete is what lets the held rows grow, past this many the
+    // complete ranges are stored next to the summary and read back when it is their turn
+    private static final int MAX_HELD_ROWS = 20 * RANGE_SIZE;
+
+    private static final String HEADER = "<html><body>";
+    private static final String FOOTER = "</body></html>";
+
+    private final S3Operations s3Operations;
+    private final String bucket;
+    private final String key;
+
+    private final String uploadId;
+    private final List<CompletedPart> parts;
+    private final ByteArrayOutputStream buffer;
+    private boolean finished;
+
+    // Ranges not written yet by their index, nextRange is the one the summary continues with
+    private final TreeMap<Integer, Range> ranges = new TreeMap<>();
+    private int nextRange = 0;
+    private int heldRows = 0;
+
+    // Rows since the last takeChunk, only kept if the local app wants progressive results
+    private StringBuilder chunk;
+
+    private static class Range {
+        // By task id
+        private final TreeMap<Integer, String> rows = new TreeMap<>();
+        private int count = 0;
+        // Key of the stored rows, null while they are held
+        private String stored;
+    }
+
+    public SummaryWriter(S3Operations s3Operations, String bucket, String key) {
+        this.s3Operations = s3Operations;
+        this.bucket = bucket;
+        this.key = key;
+
+        this.uploadId = s3Operations.createMultipartUpload(bucket, key);
+        this.parts = new ArrayList<>();
+        this.buffer = new ByteArrayOutputStream(PART_SIZE);
+        this.finished = false;
+
+        write(HEADER);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public synchronized void append(int taskId, String action, String pdfUrl, String output) {
+        if (finished) {
+            System.out.println("Summary " + key + " already finished, dropping row for " + pdfUrl);
+            return;
+        }
+
+        String row = "<p>" + escapeHTML(action) + "\t" + escapeHTML(pdfUrl) + "\t" + escapeHTML(output) + "</p>\n";
+        // Chunks are progress, their rows are in the order results arrive
+        if (chunk != null)
+            chunk.append(row);
+
+        Range range = ranges.get(taskId / RANGE_SIZE);
+        if (range == null) {
+            range = new Range();
+            ranges.put(taskId / RANGE_SIZE, range);
+        }
+        range.rows.put(taskId, row);
+        range.count++;
+        heldRows++;
+
+        writeCompleteRanges(false);
+        if (heldRows > MAX_HELD_ROWS)
+            storeCompleteRanges();
+    }
+
+    // A line of job statistics, written to the summary only after every row
+    public synchronized void appendStats(String stats) {
+        if (!finished) {
+            writeCompleteRanges(true);
+            write("<p>" + escapeHTML(stats) + "</p>\n");
+        }
+    }
+
+    public synchronized void enableChunks() {
+        if (chunk == null)
+            chunk = new StringBuilder();
+    }
+
+    // Returns the rows appended since the last call and starts a new chunk
+    public synchronized String takeChunk() {
+        if (chunk == null)
+            return "";
+        String rows = chunk.toString();
+        chunk.setLength(0);
+        return rows;
+    }
+
+    // Uploads the last part and completes the upload, returns the summary key
+    public synchronized String finish() {
+        if (!finished) {
+            writeCompleteRanges(true);
+            write(FOOTER);
+            flushPart();
+            s3Operations.completeMultipartUpload(bucket, key, uploadId, parts);
+            finished = true;
+        }
+        return key;
+    }
+
+    public synchronized void abort() {
+        if (!finished) {
+            s3Operations.abortMultipartUpload(bucket, key, uploadId);
+            finished = true;
+            for (Range range : ranges.values()) {
+                if (range.stored != null)
+                    s3Operations.deleteFile(bucket, range.stored);
+            }
+            ranges.clear();
+        }
+    }
+
+    // Writes the ranges the summary continues with, all that are left once every result is in
+    private void writeCompleteRanges(boolean all) {
+        while (!ranges.isEmpty() && (all || (ranges.firstKey() == nextRange && ranges.firstEntry().getValue().count == RANGE_SIZE))) {
+            Map.Entry<Integer, Range> first = ranges.firstEntry();
+            Range range = first.getValue();
+            if (range.stored != null) {
+                try {
+                    readStored(range.stored);
+                } catch (RuntimeException e) {
+                    // A result must not fail over it, the next append tries again and finish() gives up
+                    if (all)
+                        throw e;
+                    System.err.println("Failed to read back " + range.stored + ", retrying later: " + e.getMessage());
+                    return;
+                }
+            } else {
+                for (String row : range.rows.values()) {
+                    write(row);
+                }
+                heldRows -= range.rows.size();
+            }
+            ranges.remove(first.getKey());
+            nextRange = first.getKey() + 1;
+
+            if (buffer.size() >= PART_SIZE) {
+                try {
+                    flushPart();
+                } catch (Exception e) {
+                    // The rows are in the buffer, the next write or finish() uploads them with the part
+                    System.err.println("Failed to upload a part of " + key + ", retrying later: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Complete ranges that wait for an earlier one leave memory for <key>.ranges/<index>
+    private void storeCompleteRanges() {
+        for (Map.Entry<Integer, Range> entry : ranges.entrySet()) {
+            Range range = entry.getValue();
+            if (range.stored != null || range.count < RANGE_SIZE)
+                continue;
+
+            StringBuilder rows = new StringBuilder();
+            for (String row : range.rows.values()) {
+                rows.append(row);
+            }
+            String rangeKey = key + ".ranges/" + entry.getKey();
+            try {
+                s3Operations.uploadBytesAsFile(bucket, rangeKey, rows.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                // The rows stay held, the next append tries again
+                System.err.println("Failed to store " + rangeKey + ": " + e.getMessage());
+                return;
+            }
+            range.stored = rangeKey;
+            heldRows -= range.rows.size();
+            range.rows.clear();
+        }
+    }
+
+    private void readStored(String rangeKey) {
+        try (InputStream in = s3Operations.getFileStream(bucket, rangeKey)) {
+            byte[] bytes = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(bytes)) != -1) {
+                buffer.write(bytes, 0, bytesRead);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read " + rangeKey + " back", e);
+        }
+        s3Operations.deleteFile(bucket, rangeKey);
+    }
+
+    private void write(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        buffer.write(bytes, 0, bytes.length);
+    }
+
+    private void flushPart() {
+        parts.add(s3Operations.uploadPart(bucket, key, uploadId, parts.size() + 1, buffer.toByteArray()));
+        buffer.reset();
+    }
+
+    public static String escapeHTML(String text) {
+        if (text == null)
+            return "";
+
+        StringBuilder sb = new StringBuilder(text.length());
+        for (char c : text.toCharArray()) {
+            switch (c) {
+                case '<': sb.append("&lt;"); break;
+                case '>': sb.append("&gt;"); break;
+                case '&': sb.append("&amp;"); break;
+                case '"': sb.append("&quot;"); break;
+                case '\'': sb.append("&#39;"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+}
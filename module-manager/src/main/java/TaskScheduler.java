@@ -0,0 +1,263 @@
+import operations.Metrics;
+import operations.SQSOperations;
+import operations.Tracer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// Holds the tasks of all jobs and releases them into mwQueue with deficit round robin between
+// local apps, weighted by their priority. Only a small window of tasks is in mwQueue at any time,
+// so a job that arrives while a big one is running waits for that window, not for the big job.
+// Within a job the biggest known documents go first, tasks of unknown size keep their order
+public class TaskScheduler implements Runnable {
+
+    // Released but unanswered tasks per worker: one being processed and one ready to be received
+    private static final int TASKS_PER_WORKER = 2;
+    // Lets the first tasks go out before any worker is up
+    private static final int MIN_WINDOW = 10;
+    // SQS batch limit
+    private static final int BATCH_SIZE = 10;
+    // Tasks of a job held here or in the pre-flight before its input reader waits, so a large input
+    // is read as the window drains instead of into memory. Longest-first ordering is within these
+    private static final int MAX_UNRELEASED_PER_JOB = Integer.getInteger("manager.maxUnreleasedTasks", 5000);
+
+    private final SQSOperations sqsOperations;
+    private final String mwQueue;
+    private final WorkerPool workerPool;
+
+    // Local apps with tasks that were not released yet, in round robin order
+    private final List<Tenant> active = new ArrayList<>();
+    private int current = 0;
+    // Every job with tasks released or pending, by job id
+    private final Map<String, PendingJob> pendingJobs = new HashMap<>();
+
+    private volatile boolean running = true;
+
+    private static final Tracer TRACER = new Tracer("manager");
+
+    private final Metrics.Counter released = Metrics.counter("manager_tasks_released_total", "Tasks sent to mwQueue, speculative copies excluded");
+    private final Metrics.Counter releaseRetries = Metrics.counter("manager_release_retries_total", "Task batches sent to mwQueue again after a failure");
+
+    public TaskScheduler(SQSOperations sqsOperations, String mwQueue, WorkerPool workerPool) {
+        this.sqsOperations = sqsOperations;
+        this.mwQueue = mwQueue;
+        this.workerPool = workerPool;
+    }
+
+    @Override
+    public void run() {
+        System.out.println("Task scheduler running");
+        while (running) {
+            List<PendingTask> tasks = next();
+            if (tasks.isEmpty()) {
+                // Woken up by new tasks or results, the timeout catches workers joining the pool
+                synchronized (this) {
+                    try { wait(1000); }
+                    catch (InterruptedException e) { return; }
+                }
+                continue;
+            }
+
+            // Each task message carries its task's span, the worker continues it
+            List<String> batch = new ArrayList<>(tasks.size());
+            List<Tracer.Context> contexts = new ArrayList<>(tasks.size());
+            for (PendingTask task : tasks) {
+                batch.add(task.message);
+                contexts.add(task.context);
+            }
+
+            while (running) {
+                try {
+                    sqsOperations.sendMessages(mwQueue, batch, contexts);
+                    released.inc(batch.size());
+                    break;
+                } catch (Exception e) {
+                    System.err.println("Failed to release " + batch.size() + " tasks, retrying: " + e.getMessage());
+                    releaseRetries.inc();
+                    try { Thread.sleep(1000); } catch (InterruptedException ie) { return; }
+                }
+            }
+        }
+    }
+
+    public synchronized void submit(JobData job, List<String> tasks) {
+        for (String task : tasks) {
+            submit(job, task, -1);
+        }
+    }
+
+    // size is the document size in bytes, -1 if unknown
+    public synchronized void submit(JobData job, String task, long size) {
+        // A failed job's tasks may still come in from the pre-flight
+        if (job.isComplete())
+            return;
+        PendingJob pendingJob = pendingJobs.get(job.getId());
+        if (pendingJob == null) {
+            pendingJob = new PendingJob(job);
+            pendingJobs.put(job.getId(), pendingJob);
+        }
+
+        Tenant tenant = tenant(job.getLocalApp());
+        if (pendingJob.tasks.isEmpty())
+            tenant.jobs.addLast(pendingJob);
+        pendingJob.tasks.add(new PendingTask(task, size, pendingJob.submitted++));
+        notifyAll();
+    }
+
+    // Drops the tasks of a failed job that were not released yet, results of the others are dropped on arrival
+    public synchronized void cancel(JobData job) {
+        PendingJob pendingJob = pendingJobs.remove(job.getId());
+        if (pendingJob == null)
+            return;
+        pendingJob.tasks.clear();
+        for (Tenant tenant : active) {
+            tenant.jobs.remove(pendingJob);
+        }
+    }
+
+    // Blocks the input reader of a job while too many of its tasks were not released yet. Returns
+    // right away for a job that failed and once the scheduler stops
+    public synchronized void awaitRoom(JobData job) {
+        while (running && !job.isComplete() && job.getUnreleasedTasks() >= MAX_UNRELEASED_PER_JOB) {
+            // Released batches wake the readers, the timeout catches tasks the pre-flight rejected
+            try { wait(1000); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); return; }
+        }
+    }
+
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    public void stop() {
+        running = false;
+        wakeUp();
+    }
+
+    // Picks the next tasks to release, as many as the window has room for
+    private synchronized List<PendingTask> next() {
+        int max = Math.min(BATCH_SIZE, window() - inFlight());
+        List<PendingTask> batch = new ArrayList<>();
+
+        while (batch.size() < max && !active.isEmpty()) {
+            if (current >= active.size())
+                current = 0;
+            Tenant tenant = active.get(current);
+
+            // A new turn adds the tenant's quantum, a turn cut short by the window keeps what is left
+            if (tenant.deficit == 0)
+                tenant.deficit = tenant.localApp.getPriority().getWeight();
+
+            while (tenant.deficit > 0 && batch.size() < max && !tenant.jobs.isEmpty()) {
+                batch.add(tenant.poll());
+                tenant.deficit--;
+            }
+
+            if (tenant.jobs.isEmpty()) {
+                // An idle tenant does not save up credit, removing it moves current to the next one
+                active.remove(current);
+            } else if (tenant.deficit == 0) {
+                current++;
+            }
+        }
+        if (!batch.isEmpty())
+            notifyAll();
+        return batch;
+    }
+
+    private int window() {
+        return Math.max(MIN_WINDOW, workerPool.size() * TASKS_PER_WORKER);
+    }
+
+    // Released tasks without a result, jobs that are done are forgotten here
+    private int inFlight() {
+        int inFlight = 0;
+        Iterator<PendingJob> it = pendingJobs.values().iterator();
+        while (it.hasNext()) {
+            PendingJob pendingJob = it.next();
+            if (pendingJob.job.isComplete() && pendingJob.tasks.isEmpty()) {
+                it.remove();
+                continue;
+            }
+            inFlight += Math.max(0, pendingJob.released - pendingJob.job.getDispatchedResults());
+        }
+        return inFlight;
+    }
+
+    private Tenant tenant(LocalAppData localApp) {
+        for (Tenant tenant : active) {
+            if (tenant.localApp == localApp)
+                return tenant;
+        }
+        Tenant tenant = new Tenant(localApp);
+        active.add(tenant);
+        return tenant;
+    }
+
+    private static class Tenant {
+        private final LocalAppData localApp;
+        // Jobs of this local app with pending tasks, served round robin so a small one is not stuck behind a big one
+        private final Deque<PendingJob> jobs = new ArrayDeque<>();
+        private int deficit = 0;
+
+        private Tenant(LocalAppData localApp) {
+            this.localApp = localApp;
+        }
+
+        private PendingTask poll() {
+            PendingJob pendingJob = jobs.pollFirst();
+            PendingTask task = pendingJob.tasks.poll();
+            pendingJob.released++;
+            // <jobId>\t<taskId>\t...
+            int taskId = Integer.parseInt(task.message.split("\t", 3)[1]);
+            pendingJob.job.onReleased(taskId, task.message);
+            if (!pendingJob.tasks.isEmpty())
+                jobs.addLast(pendingJob);
+
+            // The time the task waited here for its turn
+            task.context = pendingJob.job.taskContext(taskId);
+            TRACER.record("enqueue", task.context, task.queuedAt, System.currentTimeMillis());
+            return task;
+        }
+    }
+
+    private static class PendingTask implements Comparable<PendingTask> {
+        private final String message;
+        private final long size;
+        private final long seq;
+        private final long queuedAt = System.currentTimeMillis();
+        private Tracer.Context context;
+
+        private PendingTask(String message, long size, long seq) {
+            this.message = message;
+            this.size = size;
+            this.seq = seq;
+        }
+
+        // Longest first, then in input order
+        @Override
+        public int compareTo(PendingTask other) {
+            if (size != other.size)
+                return Long.compare(other.size, size);
+            return Long.compare(seq, other.seq);
+        }
+    }
+
+    private static class PendingJob {
+        private final JobData job;
+        private final PriorityQueue<PendingTask> tasks = new PriorityQueue<>();
+        private int released = 0;
+        private long submitted = 0;
+
+        private PendingJob(JobData job) {
+            this.job = job;
+        }
+    }
+
+}
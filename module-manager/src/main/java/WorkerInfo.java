@@ -0,0 +1,80 @@
+public class WorkerInfo {
+
+    private final String id;
+    private final long launchedAt;
+    private volatile long registeredAt;
+    private volatile long lastHeartbeat;
+    private volatile int docsWorkedOn;
+    // The task the worker reported last, null while it is idle
+    private volatile String currentJobId;
+    private volatile int currentTaskId;
+    private volatile String currentReceiptHandle;
+
+    public WorkerInfo(String id) {
+        this.id = id;
+        this.launchedAt = System.currentTimeMillis();
+        this.registeredAt = 0;
+        this.lastHeartbeat = 0;
+        this.docsWorkedOn = 0;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getLaunchedAt() {
+        return launchedAt;
+    }
+
+    public boolean isRegistered() {
+        return registeredAt != 0;
+    }
+
+    public long getRegisteredAt() {
+        return registeredAt;
+    }
+
+    public long getLastHeartbeat() {
+        return lastHeartbeat;
+    }
+
+    public int getDocsWorkedOn() {
+        return docsWorkedOn;
+    }
+
+    public void register() {
+        this.registeredAt = System.currentTimeMillis();
+        this.lastHeartbeat = registeredAt;
+    }
+
+    public String getCurrentJobId() {
+        return currentJobId;
+    }
+
+    public int getCurrentTaskId() {
+        return currentTaskId;
+    }
+
+    public String getCurrentReceiptHandle() {
+        return currentReceiptHandle;
+    }
+
+    // No task in the last heartbeat, or still booting
+    public boolean isIdle() {
+        return currentReceiptHandle == null;
+    }
+
+    public void heartbeat(int docsWorkedOn, String jobId, int taskId, String receiptHandle) {
+        this.lastHeartbeat = System.currentTimeMillis();
+        this.docsWorkedOn = docsWorkedOn;
+        this.currentTaskId = taskId;
+        this.currentReceiptHandle = receiptHandle;
+        this.currentJobId = jobId;
+    }
+
+    @Override
+    public String toString() {
+        return id + (isRegistered() ? "(" + docsWorkedOn + ")" : "(booting)");
+    }
+
+}
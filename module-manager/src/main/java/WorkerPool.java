@@ -0,0 +1,239 @@
+import operations.ArtifactStore;
+import operations.InstanceRegistry;
+import operations.SQSOperations;
+import software.amazon.awssdk.services.ec2.model.Tag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WorkerPool {
+
+    // A worker that gets no task for this long retires on its own
+    private static final int IDLE_TIMEOUT_SECONDS = 5 * 60;
+
+    private final InstanceRegistry instanceRegistry;
+    private final SQSOperations sqsOperations;
+    private final String mwQueue;
+    private final String wmQueue;
+
+    // Workers that were launched and did not terminate yet, oldest first. Keyed by instance id
+    private final Map<String, WorkerInfo> workers = new LinkedHashMap<>();
+
+    // RunInstances calls run here, so whoever asks for workers never waits on EC2
+    private final ExecutorService launcher = Executors.newSingleThreadExecutor();
+    private final AtomicInteger pendingLaunches = new AtomicInteger(0);
+
+    public WorkerPool(InstanceRegistry instanceRegistry, SQSOperations sqsOperations, String mwQueue, String wmQueue) {
+        this.instanceRegistry = instanceRegistry;
+        this.sqsOperations = sqsOperations;
+        this.mwQueue = mwQueue;
+        this.wmQueue = wmQueue;
+    }
+
+    // Workers running or still being launched
+    public int size() {
+        synchronized (workers) {
+            return workers.size() + pendingLaunches.get();
+        }
+    }
+
+    // Launches up to count workers with a single RunInstances call, in the background.
+    // Workers are shared by all jobs, the URLs are only where the worker jar and archive are copied from
+    public void launch(int count, String workerJar, String workerJsa) {
+        pendingLaunches.addAndGet(count);
+        launcher.execute(() -> {
+            try {
+                launchNow(count, workerJar, workerJsa);
+            } catch (Exception e) {
+                System.err.println("Failed to launch " + count + " workers: " + e.getMessage());
+            } finally {
+                pendingLaunches.addAndGet(-count);
+            }
+        });
+    }
+
+    private void launchNow(int count, String workerJar, String workerJsa) {
+        // All instances share the user data, each worker takes its instance id from the instance
+        // metadata as its id. worker.jsa is the optional AppCDS archive built by the cds profile.
+        // The JVM only uses it if the jar matches the one it was dumped from, mtime included, hence the fixed timestamp
+        // The jar comes from the instance's artifact cache if it holds the same hash.
+        // Workers dump their metrics where the manager does, and trace if it does
+        String metricsBucket = System.getProperty("metrics.bucket", "");
+        String traceFile = System.getProperty("trace.file", "");
+        String properties = (metricsBucket.isEmpty() ? "" : "-Dmetrics.bucket=" + metricsBucket + " ")
+                + (traceFile.isEmpty() ? "" : "-Dtrace.file=" + traceFile + " ");
+        // The flight recording settings of the workers (see FlightRecording) are given to the manager
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("jfr."))
+                properties += "-D" + name + "=" + System.getProperty(name) + " ";
+        }
+        String script = "#!/bin/bash\ncd /home/ec2-user\n"
+                + ArtifactStore.fetchScript(workerJar, "worker.jar")
+                + (workerJsa.equals("-") ? "" : "{\n" + ArtifactStore.fetchScript(workerJsa, "worker.jsa") + "} || true\n")
+                + String.format("touch -d @315532800 worker.jar\njava %s-Xshare:auto -XX:SharedArchiveFile=worker.jsa -jar worker.jar %d %s %s ",
+                properties, IDLE_TIMEOUT_SECONDS, mwQueue, wmQueue);
+
+        // min 1: take whatever capacity EC2 has rather than failing the whole launch
+        String[] instanceIds = instanceRegistry.runInstances(script, 1, count,
+                Arrays.asList(
+                        Tag.builder().key("type").value("worker").build(),
+                        Tag.builder().key("worker-pool").value(mwQueue).build()
+                ));
+
+        synchronized (workers) {
+            for (String instanceId : instanceIds) {
+                workers.put(instanceId, new WorkerInfo(instanceId));
+            }
+        }
+        System.out.println("Launched " + instanceIds.length + " of " + count + " requested workers");
+    }
+
+    public void onWorkerRegistered(String id, long jvmMillis) {
+        WorkerInfo worker = get(id);
+        if (worker == null) {
+            System.out.println("Unknown worker " + id + " registered");
+            return;
+        }
+
+        worker.register();
+        System.out.println("[startup] " + id + " registered " + (worker.getRegisteredAt() - worker.getLaunchedAt())
+                + "ms after launch, " + jvmMillis + "ms after JVM start");
+    }
+
+    public void onWorkerStartup(String id, long jvmMillis) {
+        WorkerInfo worker = get(id);
+        String sinceLaunch = worker == null ? "?" : String.valueOf(System.currentTimeMillis() - worker.getLaunchedAt());
+        System.out.println("[startup] " + id + " received its first task " + sinceLaunch
+                + "ms after launch, " + jvmMillis + "ms after JVM start");
+    }
+
+    public void onHeartbeat(String id, int docsWorkedOn, String jobId, int taskId, String receiptHandle) {
+        WorkerInfo worker = get(id);
+        if (worker == null) {
+            System.out.println("Heartbeat from unknown worker " + id);
+            return;
+        }
+
+        // A heartbeat also counts as registration in case the register message was lost
+        if (!worker.isRegistered())
+            worker.register();
+        worker.heartbeat(docsWorkedOn, jobId, taskId, receiptHandle);
+    }
+
+    // Called when a worker retires, the worker does not shut its own instance down
+    public void onWorkerTerminated(String id) {
+        cleanupWorker(id);
+        synchronized (workers) {
+            workers.remove(id);
+        }
+        System.out.println(workersToString());
+    }
+
+    // Removes a worker the liveness monitor gave up on and terminates its instance, returns false if it was already gone
+    public boolean onWorkerDead(String id) {
+        synchronized (workers) {
+            if (workers.remove(id) == null)
+                return false;
+        }
+        cleanupWorker(id);
+        System.out.println(workersToString());
+        return true;
+    }
+
+    public List<WorkerInfo> snapshot() {
+        synchronized (workers) {
+            return new ArrayList<>(workers.values());
+        }
+    }
+
+    // Terminates up to count idle workers, the newest first as they may still be booting. A worker
+    // whose last heartbeat holds a task is left alone, it retires on its own once there is no more work.
+    // Returns how many were terminated
+    public int retire(int count) {
+        List<WorkerInfo> retired = new ArrayList<>();
+        synchronized (workers) {
+            List<WorkerInfo> idle = new ArrayList<>();
+            for (WorkerInfo worker : workers.values()) {
+                if (worker.isIdle())
+                    idle.add(worker);
+            }
+            idle.sort(Comparator.comparingLong(WorkerInfo::getLaunchedAt).reversed());
+            for (WorkerInfo worker : idle) {
+                if (retired.size() >= count)
+                    break;
+                retired.add(worker);
+                workers.remove(worker.getId());
+            }
+        }
+        terminate(retired);
+        return retired.size();
+    }
+
+    // Terminates every worker, busy ones included
+    public void shutdown() {
+        launcher.shutdownNow();
+        List<WorkerInfo> retired;
+        synchronized (workers) {
+            retired = new ArrayList<>(workers.values());
+            workers.clear();
+        }
+        terminate(retired);
+    }
+
+    private void terminate(List<WorkerInfo> retired) {
+        if (retired.isEmpty())
+            return;
+
+        List<String> ids = new ArrayList<>();
+        for (WorkerInfo worker : retired) {
+            ids.add(worker.getId());
+            releaseTask(worker);
+        }
+        // Worker ids are instance ids, so this is a single EC2 call
+        System.out.println("Retiring workers " + ids);
+        instanceRegistry.terminateInstances(ids);
+    }
+
+    // The task of a killed worker is visible in mwQueue again at once, as LivenessMonitor does for dead ones
+    private void releaseTask(WorkerInfo worker) {
+        String receiptHandle = worker.getCurrentReceiptHandle();
+        if (receiptHandle == null)
+            return;
+        try {
+            sqsOperations.changeVisibilityTimeout(mwQueue, receiptHandle, 0);
+        } catch (Exception e) {
+            // The task finished or its visibility ran out in the meantime, the handle is no longer valid
+            System.out.println("Could not release task " + worker.getCurrentTaskId() + " of " + worker.getId() + ": " + e.getMessage());
+        }
+    }
+
+    public WorkerInfo get(String id) {
+        synchronized (workers) {
+            return workers.get(id);
+        }
+    }
+
+    public void cleanupWorker(String id) {
+        // The worker id is its instance id
+        instanceRegistry.terminateInstances(Collections.singletonList(id));
+    }
+
+    public String workersToString(){
+        StringBuilder sb = new StringBuilder();
+        synchronized (workers) {
+            for (WorkerInfo worker : workers.values()) {
+                sb.append(worker).append(";");
+            }
+        }
+        return sb.toString();
+    }
+
+}
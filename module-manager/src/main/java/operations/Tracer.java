@@ -0,0 +1,313 @@
+package operations;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Spans of one service (local-app, manager, worker) that follow a job across processes. The span that
+// is current on a thread travels with every SQS message the thread sends, as a W3C traceparent message
+// attribute, and the receiver continues the trace from it. Finished spans are appended to a Zipkin v2
+// JSON file, which can be opened in Zipkin or Jaeger or posted to /api/v2/spans as it is
+public class Tracer {
+
+    // The SQS message attribute, same name and format as the W3C HTTP header
+    public static final String ATTRIBUTE = "traceparent";
+
+    private static final int FLUSH_INTERVAL_SECONDS = 5;
+
+    private static final ThreadLocal<Context> current = new ThreadLocal<>();
+
+    // Only spans that end while a file is open are kept, ids are made and passed on either way
+    private static volatile boolean exporting = false;
+    private static final ConcurrentLinkedQueue<String> finished = new ConcurrentLinkedQueue<>();
+    private static RandomAccessFile file;
+    private static String fileName;
+    private static ScheduledExecutorService flusher;
+    // Instances are terminated without a shutdown, their file goes to S3 next to their metrics
+    private static Runnable upload;
+
+    private final String service;
+
+    public Tracer(String service) {
+        this.service = service;
+    }
+
+    // A child of the span current on this thread, or a new trace
+    public Span start(String name) {
+        return start(name, current.get());
+    }
+
+    public Span start(String name, Context parent) {
+        return new Span(this, name, parent, System.currentTimeMillis() * 1000, System.nanoTime());
+    }
+
+    // A span that is already over, for waits measured from timestamps like an SQS message's SentTimestamp
+    public void record(String name, Context parent, long startMillis, long endMillis, String... tags) {
+        Span span = new Span(this, name, parent, startMillis * 1000, 0);
+        for (int i = 0; i + 1 < tags.length; i += 2) {
+            span.tag(tags[i], tags[i + 1]);
+        }
+        span.end(Math.max(0, endMillis - startMillis) * 1000);
+    }
+
+    public static Context current() {
+        return current.get();
+    }
+
+    // Whether ended spans are written anywhere, spans kept around for long are only worth it then
+    public static boolean isExporting() {
+        return exporting;
+    }
+
+    // Makes context current on this thread, for work done on behalf of a span started elsewhere
+    public static Scope activate(Context context) {
+        Context previous = current.get();
+        current.set(context);
+        return () -> current.set(previous);
+    }
+
+    // The context a message was sent in, null if it carries none
+    public static Context extract(Message message) {
+        Map<String, MessageAttributeValue> attributes = message.messageAttributes();
+        MessageAttributeValue value = attributes == null ? null : attributes.get(ATTRIBUTE);
+        return value == null ? null : Context.parse(value.stringValue());
+    }
+
+    public static Map<String, MessageAttributeValue> attributes(Context context) {
+        return Collections.singletonMap(ATTRIBUTE,
+                MessageAttributeValue.builder().dataType("String").stringValue(context.traceparent()).build());
+    }
+
+    // Export
+
+    // Appends the spans of this JVM to path every few seconds and once more at exit
+    public static synchronized void exportTo(String path) {
+        if (file != null)
+            return;
+        try {
+            File target = new File(path);
+            File parent = target.getAbsoluteFile().getParentFile();
+            if (parent != null)
+                parent.mkdirs();
+            file = new RandomAccessFile(target, "rw");
+            file.setLength(0);
+            fileName = path;
+        } catch (IOException e) {
+            System.err.println("[tracing] could not open " + path + ": " + e.getMessage());
+            return;
+        }
+
+        exporting = true;
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "trace-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(Tracer::flush, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(Tracer::flush, "trace-flush-at-exit"));
+        System.out.println("[tracing] writing spans to " + path);
+    }
+
+    // Exports to -Dtrace.file if it is set. With -Dmetrics.bucket, stopExport() also uploads the file
+    // to s3://<metrics.bucket>/metrics/<name>/traces.json
+    public static synchronized void startExport(String name, Supplier<S3Operations> s3Operations) {
+        String path = System.getProperty("trace.file", "");
+        if (path.isEmpty())
+            return;
+        exportTo(path);
+
+        String bucket = System.getProperty("metrics.bucket", "");
+        if (!bucket.isEmpty() && upload == null) {
+            upload = () -> {
+                try {
+                    s3Operations.get().uploadFile(bucket, "metrics/" + name + "/traces.json", new File(path));
+                } catch (Exception e) {
+                    System.err.println("[tracing] upload failed: " + e.getMessage());
+                }
+            };
+        }
+    }
+
+    public static synchronized void stopExport() {
+        flush();
+        if (upload != null) {
+            upload.run();
+            upload = null;
+        }
+    }
+
+    // The file is a JSON array at all times, new spans go in front of its closing bracket
+    private static synchronized void flush() {
+        if (file == null || finished.isEmpty())
+            return;
+
+        StringBuilder json = new StringBuilder();
+        String span;
+        while ((span = finished.poll()) != null) {
+            json.append(json.length() == 0 ? "" : ",\n").append(span);
+        }
+
+        try {
+            long length = file.length();
+            if (length == 0) {
+                file.write(("[\n" + json + "\n]").getBytes(StandardCharsets.UTF_8));
+            } else {
+                file.seek(length - 2);
+                file.write((",\n" + json + "\n]").getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            System.err.println("[tracing] could not write " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    private static String hex(long value) {
+        String hex = Long.toHexString(value);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    private static String newId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return hex(id);
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        json.append('"');
+    }
+
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    public static final class Context {
+        private final String traceId;
+        private final String spanId;
+
+        private Context(String traceId, String spanId) {
+            this.traceId = traceId;
+            this.spanId = spanId;
+        }
+
+        public String getTraceId() {
+            return traceId;
+        }
+
+        public String traceparent() {
+            return "00-" + traceId + "-" + spanId + "-01";
+        }
+
+        // 00-<32 hex trace id>-<16 hex span id>-<flags>, null for anything else
+        public static Context parse(String traceparent) {
+            String[] parts = traceparent == null ? new String[0] : traceparent.split("-");
+            if (parts.length != 4 || parts[1].length() != 32 || parts[2].length() != 16)
+                return null;
+            return new Context(parts[1], parts[2]);
+        }
+    }
+
+    public static final class Span {
+        private final Tracer tracer;
+        private final String name;
+        private final Context context;
+        private final String parentId;
+        private final long startMicros;
+        private final long startNanos;
+        private Map<String, String> tags;
+        private boolean ended = false;
+
+        private Span(Tracer tracer, String name, Context parent, long startMicros, long startNanos) {
+            this.tracer = tracer;
+            this.name = name;
+            this.context = new Context(parent == null ? newId() + newId() : parent.traceId, newId());
+            this.parentId = parent == null ? null : parent.spanId;
+            this.startMicros = startMicros;
+            this.startNanos = startNanos;
+        }
+
+        public Context context() {
+            return context;
+        }
+
+        // Tags only end up in the export, without one they are not kept
+        public synchronized Span tag(String key, String value) {
+            if (!exporting)
+                return this;
+            if (tags == null)
+                tags = new LinkedHashMap<>();
+            tags.put(key, value);
+            return this;
+        }
+
+        // Messages sent while the scope is open carry this span
+        public Scope makeCurrent() {
+            return activate(context);
+        }
+
+        public void end() {
+            end((System.nanoTime() - startNanos) / 1000);
+        }
+
+        private synchronized void end(long durationMicros) {
+            if (ended)
+                return;
+            ended = true;
+            if (exporting)
+                finished.add(toJson(Math.max(1, durationMicros)));
+        }
+
+        private String toJson(long durationMicros) {
+            StringBuilder json = new StringBuilder("{\"traceId\":\"").append(context.traceId)
+                    .append("\",\"id\":\"").append(context.spanId).append('"');
+            if (parentId != null)
+                json.append(",\"parentId\":\"").append(parentId).append('"');
+            json.append(",\"name\":");
+            appendString(json, name);
+            json.append(",\"timestamp\":").append(startMicros).append(",\"duration\":").append(durationMicros)
+                    .append(",\"localEndpoint\":{\"serviceName\":");
+            appendString(json, tracer.service);
+            json.append('}');
+            if (tags != null) {
+                json.append(",\"tags\":{");
+                List<String> keys = new ArrayList<>(tags.keySet());
+                for (int i = 0; i < keys.size(); i++) {
+                    if (i > 0)
+                        json.append(',');
+                    appendString(json, keys.get(i));
+                    json.append(':');
+                    appendString(json, tags.get(keys.get(i)));
+                }
+                json.append('}');
+            }
+            return json.append('}').toString();
+        }
+    }
+
+}
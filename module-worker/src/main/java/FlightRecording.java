@@ -0,0 +1,79 @@
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import operations.S3Operations;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+
+// A continuous flight recording of the worker JVM. The last -Djfr.maxAgeMinutes of events, at most
+// -Djfr.maxSizeMB, are kept in a ring buffer on disk, and dump() uploads them to S3 to be opened in
+// JDK Mission Control. The "default" settings cost about 1% and already hold GC and lock events,
+// allocation samples are added on top. -Djfr.settings=profile records more, -Djfr.enabled=false nothing
+public final class FlightRecording {
+
+    private static final int DEFAULT_MAX_AGE_MINUTES = 30;
+    private static final int DEFAULT_MAX_SIZE_MB = 100;
+    // Between dumps for slow tasks, so a slow job does not upload the same events over and over
+    private static final long MIN_DUMP_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    private static Recording recording;
+    private static long lastDump = 0;
+
+    private FlightRecording() {
+    }
+
+    // A failure to record never stops the worker
+    public static synchronized void start() {
+        if (recording != null || !Boolean.parseBoolean(System.getProperty("jfr.enabled", "true")))
+            return;
+
+        String settings = System.getProperty("jfr.settings", "default");
+        try {
+            Recording continuous = new Recording(Configuration.getConfiguration(settings));
+            continuous.setName("worker");
+            continuous.setToDisk(true);
+            continuous.setMaxAge(Duration.ofMinutes(Integer.getInteger("jfr.maxAgeMinutes", DEFAULT_MAX_AGE_MINUTES)));
+            continuous.setMaxSize(Integer.getInteger("jfr.maxSizeMB", DEFAULT_MAX_SIZE_MB) * 1024L * 1024);
+            // Sampled, unlike the per allocation events of older JDKs that do not know this one
+            continuous.enable("jdk.ObjectAllocationSample").with("throttle", "150/s");
+            continuous.start();
+            recording = continuous;
+            System.out.println("[jfr] continuous recording with " + settings + " settings");
+        } catch (IOException | ParseException | IllegalStateException | SecurityException e) {
+            System.err.println("[jfr] could not start recording: " + e.getMessage());
+        }
+    }
+
+    // Uploads the recording to s3://bucket/key, null if there is none or it could not be stored
+    public static synchronized String dump(S3Operations s3Operations, String bucket, String key) {
+        if (recording == null || bucket == null)
+            return null;
+
+        Path file = null;
+        try {
+            file = Files.createTempFile("worker", ".jfr");
+            recording.dump(file);
+            lastDump = System.currentTimeMillis();
+            String url = s3Operations.uploadFile(bucket, key, file.toFile());
+            System.out.println("[jfr] recording uploaded to " + url);
+            return url;
+        } catch (Exception e) {
+            System.err.println("[jfr] dump to s3://" + bucket + "/" + key + " failed: " + e.getMessage());
+            return null;
+        } finally {
+            if (file != null)
+                file.toFile().delete();
+        }
+    }
+
+    // As dump(), at most once every few minutes
+    public static synchronized String dumpThrottled(S3Operations s3Operations, String bucket, String key) {
+        if (System.currentTimeMillis() - lastDump < MIN_DUMP_INTERVAL_MILLIS)
+            return null;
+        return dump(s3Operations, bucket, key);
+    }
+
+}
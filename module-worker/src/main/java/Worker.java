@@ -1,180 +1,511 @@
-import operations.EC2Operations;
+import conversion.PdfConverter;
+import operations.Metrics;
 import operations.S3Operations;
 import operations.SQSOperations;
-import org.apache.pdfbox.Loader;
+import operations.Tracer;
 import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.pdmodel.PDPage;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
 
-import org.apache.pdfbox.text.PDFTextStripper;
-
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class Worker {
 
-    private final S3Operations s3Operations;
+    private final Region region;
+    // Created on first upload, the worker only needs SQS to start receiving
+    private S3Operations s3Operations;
     private final SQSOperations sqsOperations;
-    private final EC2Operations ec2Operations;
 
-    private final int id;
-    private final int docsCapacity;
-    private int docsWorkedOn;
-    private final String bucket;
+    // Long polling wait per receive, and how often the manager hears from an idle or busy worker.
+    // The manager declares a worker dead after a few missed heartbeats
+    private static final int WAIT_TIME_SECONDS = 20;
+    private static final int HEARTBEAT_INTERVAL_SECONDS = 10;
+    // Each heartbeat keeps the task in progress invisible for this long, however long the conversion takes.
+    // A worker that dies lets it go after a few missed heartbeats, if the manager did not release it first
+    private static final int TASK_VISIBILITY_SECONDS = 60;
+
+    private final String id;
+    private final long idleTimeoutMillis;
+    private volatile int docsWorkedOn;
+    // <jobId>\t<taskId>\t<receiptHandle> of the task in progress, so the manager can release it if
+    // this worker dies. null while idle
+    private volatile String currentTask;
     private final String mwQueue;
     private final String wmQueue;
+    // Bucket of the latest task's job, where the flight recording goes when the worker retires
+    private volatile String lastBucket;
+
+    private static final String STAGE_HELP = "Time per stage of a task: queue_wait, download, load, render, encode, extract_text, upload";
+    private static final Tracer TRACER = new Tracer("worker");
+    private static final Metrics.Counter FETCHED_BYTES = Metrics.counter("worker_fetched_bytes_total", "Bytes of PDFs downloaded");
+    // A task that takes longer leaves the flight recording in its job's bucket, 0 for never
+    private static final long SLOW_TASK_MILLIS = Long.getLong("jfr.slowTaskSeconds", 120) * 1000;
+
+    private final ScheduledExecutorService heartbeat;
+    // Uploads the recordings of slow tasks, apart from the heartbeat so a large upload does not delay it
+    private final ExecutorService recorder;
+    // Cleared by stop(), where a real worker would be terminated with its instance
+    private volatile boolean running = true;
+
+    public Worker(String id, int idleTimeoutSeconds, String mwQueue, String wmQueue) {
+        this(id, idleTimeoutSeconds, mwQueue, wmQueue, null, new SQSOperations(Region.US_EAST_1));
+    }
 
-    public Worker(int id, int docsCapacity, String bucket, String mwQueue, String wmQueue) {
+    // With other operations than the AWS ones, the load test passes local stand-ins. A null
+    // s3Operations is created with the first upload
+    public Worker(String id, int idleTimeoutSeconds, String mwQueue, String wmQueue,
+                  S3Operations s3Operations, SQSOperations sqsOperations) {
         this.id = id;
 
-        Region region = Region.US_EAST_1;
-        this.s3Operations = new S3Operations(region);
-        this.sqsOperations = new SQSOperations(region);
-        this.ec2Operations = new EC2Operations(region);
+        this.region = Region.US_EAST_1;
+        this.s3Operations = s3Operations;
+        this.sqsOperations = sqsOperations;
 
-        this.docsCapacity = docsCapacity;
+        this.idleTimeoutMillis = idleTimeoutSeconds * 1000L;
         this.docsWorkedOn = 0;
 
-        this.bucket = bucket;
         this.mwQueue = mwQueue;
         this.wmQueue = wmQueue;
+
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.recorder = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "recorder");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public static void main(String[] args) {
-        if (args.length != 5)
-            throw new RuntimeException("Usage: Manager <id> <docsCapacity> <bucket> <mwQueue> <wmQueue>");
-        Worker worker = new Worker(Integer.parseInt(args[0]), Integer.parseInt(args[1]), args[2], args[3], args[4]);
+        if (args.length == 1 && args[0].equals("--cds-training")) {
+            cdsTraining();
+            return;
+        }
+        if (args.length < 3 || args.length > 4)
+            throw new RuntimeException("Usage: Worker <idleTimeoutSeconds> <mwQueue> <wmQueue> [id]");
+
+        // Workers are launched in batches with the same user data, so the id comes from the instance itself
+        String id = args.length == 4 ? args[3] : instanceId();
+        Worker worker = new Worker(id, Integer.parseInt(args[0]), args[1], args[2]);
+        // The manager passes its -Dmetrics.bucket on, the dumps of all its workers are next to its own
+        Metrics.startExport(args[1] + "/" + id, worker::s3);
+        Tracer.startExport(args[1] + "/" + id, worker::s3);
+        FlightRecording.start();
         worker.run();
     }
 
+    // The EC2 instance id from the instance metadata service (IMDSv2), or a random id outside EC2
+    public static String instanceId() {
+        try {
+            HttpURLConnection tokenRequest = (HttpURLConnection) new URL("http://169.254.169.254/latest/api/token").openConnection();
+            tokenRequest.setRequestMethod("PUT");
+            tokenRequest.setRequestProperty("X-aws-ec2-metadata-token-ttl-seconds", "60");
+            tokenRequest.setConnectTimeout(1000);
+            tokenRequest.setReadTimeout(1000);
+            String token = readAll(tokenRequest.getInputStream());
+
+            HttpURLConnection idRequest = (HttpURLConnection) new URL("http://169.254.169.254/latest/meta-data/instance-id").openConnection();
+            idRequest.setRequestProperty("X-aws-ec2-metadata-token", token);
+            idRequest.setConnectTimeout(1000);
+            idRequest.setReadTimeout(1000);
+            return readAll(idRequest.getInputStream()).trim();
+        } catch (IOException e) {
+            System.err.println("Instance metadata not available: " + e.getMessage());
+            return "worker-" + UUID.randomUUID();
+        }
+    }
+
+    private static String readAll(InputStream inputStream) throws IOException {
+        try (InputStream in = inputStream) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // The worker serves tasks of any job until it has been idle for idleTimeoutMillis
     public void run() {
         System.out.println("Worker running");
-        while (docsWorkedOn < docsCapacity) {
-            System.out.println("Works on " + docsWorkedOn + " out of " + docsCapacity);
-            Message message = sqsOperations.receiveMessage(mwQueue);
+        sqsOperations.sendMessage(wmQueue, "register\t" + id + "\t" + millisSinceJvmStart());
+        heartbeat.scheduleAtFixedRate(this::sendHeartbeat, HEARTBEAT_INTERVAL_SECONDS, HEARTBEAT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        boolean firstMessage = true;
+        long lastWork = System.currentTimeMillis();
+        while (System.currentTimeMillis() - lastWork < idleTimeoutMillis) {
+            Message message = sqsOperations.receiveMessage(mwQueue, WAIT_TIME_SECONDS);
+            if (!running) {
+                // Terminated instances say nothing, a message it got goes back to the queue on its own
+                heartbeat.shutdownNow();
+                recorder.shutdownNow();
+                return;
+            }
             if (message == null) {
-                break;
+                continue;
             }
 
             sqsOperations.changeVisibilityTimeout(mwQueue, message.receiptHandle(), 90);
+
+            // Startup benchmark: JVM start to first task, reported once to the manager
+            if (firstMessage) {
+                firstMessage = false;
+                long startup = millisSinceJvmStart();
+                System.out.println("[startup] first message received " + startup + "ms after JVM start");
+                sqsOperations.sendMessage(wmQueue, "startup\t" + id + "\t" + startup);
+            }
             String body = message.body();
 
+            // The manager learns about the task right away, not with the next heartbeat
+            String[] header = body.split("\t", 3);
+            if (header.length == 3) {
+                currentTask = header[0] + "\t" + header[1] + "\t" + message.receiptHandle();
+                sendHeartbeat();
+            }
+
+            long taskStart = System.currentTimeMillis();
+            long taskStartNanos = System.nanoTime();
+            String action = "unknown";
+            String outcome = "failure";
+            // The manager's span of the task is the parent, the result goes back with this one
+            Tracer.Context taskContext = Tracer.extract(message);
+            Tracer.Span span = TRACER.start("process", taskContext).tag("worker", id);
+            Tracer.Scope scope = span.makeCurrent();
             try {
+                // <jobId>\t<taskId>\t<bucket>\t<action>\t<pdfUrl>
                 String[] parts = body.split("\t");
-                String action = parts[0];
-                String pdfLoc = parts[1];
-
-                String outputLoc = process(action, pdfLoc, message.receiptHandle());
-                String response = action + "\t" + pdfLoc + "\t" + outputLoc;
+                String jobId = parts[0];
+                String taskId = parts[1];
+                String outputBucket = parts[2];
+                action = parts[3];
+                String pdfLoc = parts[4];
+                lastBucket = outputBucket;
+                span.tag("action", action).tag("url", pdfLoc);
+                recordQueueWait(action, message, taskContext, taskStart);
+
+                String outputLoc = process(action, pdfLoc, outputBucket);
+                if (outputLoc != null && outputLoc.startsWith("s3://"))
+                    outcome = "success";
+                // The manager learns how long tasks take from the elapsed time, to spot stragglers
+                long elapsed = System.currentTimeMillis() - taskStart;
+                String response = jobId + "\t" + taskId + "\t" + elapsed + "\t" + action + "\t" + pdfLoc + "\t" + outputLoc;
                 sqsOperations.sendMessage(wmQueue, response);
             }
             catch (Exception e) {
                 System.err.println("Failed to process message: " + message.body());
                 e.printStackTrace();
-                sqsOperations.sendMessage(wmQueue, body + "\t" + e.getMessage());
+                sqsOperations.sendMessage(wmQueue, failureResponse(body, System.currentTimeMillis() - taskStart, e.getMessage()));
             }
+            Metrics.histogram("worker_task_seconds", "Time from receiving a task to sending its result",
+                    "action", action, "outcome", outcome).observeSince(taskStartNanos);
+            scope.close();
+            span.tag("outcome", outcome).end();
 
             sqsOperations.deleteMessage(mwQueue, message.receiptHandle());
+            currentTask = null;
             docsWorkedOn++;
+            if (SLOW_TASK_MILLIS > 0 && header.length == 3 && System.currentTimeMillis() - taskStart > SLOW_TASK_MILLIS) {
+                // The next task does not wait for the upload
+                String bucket = lastBucket;
+                String key = recordingKey("slow-" + header[0] + "-" + header[1]);
+                recorder.execute(() -> FlightRecording.dumpThrottled(s3(), bucket, key));
+            }
+            lastWork = System.currentTimeMillis();
+            System.out.println("Worked on " + docsWorkedOn + " docs");
         }
 
+        System.out.println("Idle for " + idleTimeoutMillis / 1000 + " seconds, retiring");
+        heartbeat.shutdownNow();
+        // A slow task's dump still running holds the recording, the exit dump goes out after it
+        recorder.shutdown();
+        // The manager terminates the instance once it hears of this, the last dump goes out first
+        if (lastBucket != null)
+            FlightRecording.dump(s3(), lastBucket, recordingKey("exit"));
+        Metrics.stopExport();
+        Tracer.stopExport();
         sqsOperations.sendMessage(wmQueue, "terminate\t" + id);
     }
 
-    public String process(String action, String pdfLoc, String messageReceiptHandle) {
+    // Stops at the next message as if the instance was terminated, for workers run in-process
+    public void stop() {
+        running = false;
+    }
+
+    // heartbeat\t<id>\t<docsWorkedOn>\t<jobId>\t<taskId>\t<receiptHandle>, the task fields are - while idle
+    private void sendHeartbeat() {
+        String task = currentTask;
         try {
-            File pdfFile = downloadPDF(pdfLoc, messageReceiptHandle);
-            PDDocument document = Loader.loadPDF(pdfFile);
+            sqsOperations.sendMessage(wmQueue, "heartbeat\t" + id + "\t" + docsWorkedOn + "\t" + (task == null ? "-\t-\t-" : task));
+        } catch (Exception e) {
+            // A failed heartbeat must not cancel the schedule
+            System.err.println("Failed to send heartbeat: " + e.getMessage());
+        }
+
+        if (task == null)
+            return;
+        try {
+            sqsOperations.changeVisibilityTimeout(mwQueue, task.substring(task.lastIndexOf('\t') + 1), TASK_VISIBILITY_SECONDS);
+        } catch (Exception e) {
+            // The task may have finished and its message been deleted in the meantime
+            System.err.println("Failed to extend the visibility of the current task: " + e.getMessage());
+        }
+    }
+
+    // From the moment the manager sent the task to the moment this worker received it
+    private void recordQueueWait(String action, Message message, Tracer.Context taskContext, long receivedAt) {
+        String sent = message.attributes().get(MessageSystemAttributeName.SENT_TIMESTAMP);
+        if (sent == null)
+            return;
+        long sentAt = Long.parseLong(sent);
+        Metrics.histogram("worker_stage_seconds", STAGE_HELP, "action", action, "stage", "queue_wait")
+                .observe(Math.max(0, receivedAt - sentAt) / 1000.0);
+        TRACER.record("queue_wait", taskContext, sentAt, receivedAt, "worker", id);
+    }
+
+    private static void recordStage(String action, String stage, long startNanos) {
+        Metrics.histogram("worker_stage_seconds", STAGE_HELP, "action", action, "stage", stage).observeSince(startNanos);
+    }
+
+    private static String extractText(String action, PDDocument document) throws IOException {
+        Tracer.Span span = TRACER.start("convert");
+        long startNanos = System.nanoTime();
+        try {
+            return PdfConverter.extractText(document);
+        } finally {
+            recordStage(action, "extract_text", startNanos);
+            span.end();
+        }
+    }
+
+    // Begun, the caller sets the output size and commits
+    private static WorkerEvents.Conversion conversionEvent(String action, String url, PDDocument document) {
+        WorkerEvents.Conversion event = new WorkerEvents.Conversion();
+        event.begin();
+        event.action = action;
+        event.url = url;
+        event.pages = document.getNumberOfPages();
+        return event;
+    }
+
+    private static String upload(String action, Supplier<String> upload) {
+        Tracer.Span span = TRACER.start("upload");
+        long startNanos = System.nanoTime();
+        try {
+            return upload.get();
+        } finally {
+            recordStage(action, "upload", startNanos);
+            span.end();
+        }
+    }
+
+    // recordings/<id>/<millis>-<reason>.jfr
+    private String recordingKey(String reason) {
+        return "recordings/" + id + "/" + System.currentTimeMillis() + "-" + reason + ".jfr";
+    }
+
+    private synchronized S3Operations s3() {
+        if (s3Operations == null)
+            s3Operations = new S3Operations(region);
+        return s3Operations;
+    }
+
+    private static long millisSinceJvmStart() {
+        return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    // Runs the startup and conversion paths once without touching the network, so that an
+    // AppCDS archive dumped at exit holds the classes a real worker loads (see the cds profile)
+    public static void cdsTraining() {
+        try {
+            Region region = Region.US_EAST_1;
+            new SQSOperations(region);
+            new S3Operations(region);
+
+            try (PDDocument document = new PDDocument()) {
+                document.addPage(new PDPage());
+                PdfConverter.encodePng(PdfConverter.renderFirstPage(document, 72));
+                PdfConverter.extractText(document);
+            }
+            System.out.println("CDS training done");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // <jobId>\t<taskId>\t<elapsedMillis>\t<action>\t<pdfUrl>\t<error>, the layout of every result. Fields the
+    // task did not have stay empty, so the manager still counts it
+    public String failureResponse(String body, long elapsed, String error) {
+        // Drop the bucket so the manager can route the failure like any other result
+        String[] parts = body.split("\t", 5);
+        return field(parts, 0) + "\t" + field(parts, 1) + "\t" + elapsed + "\t" + field(parts, 3) + "\t" + field(parts, 4)
+                + "\t" + (error == null ? "Unknown error" : error);
+    }
+
+    private static String field(String[] parts, int index) {
+        return index < parts.length ? parts[index] : "";
+    }
+
+    public String process(String action, String pdfLoc, String outputBucket) {
+        WorkerEvents.Task event = new WorkerEvents.Task();
+        event.begin();
+        event.url = pdfLoc;
+        event.action = action;
+        event.outcome = "failure";
+        // A worker serves tasks until it is idle, neither may outlive its task
+        File pdfFile = null;
+        PDDocument document = null;
+        try {
+            long startNanos = System.nanoTime();
+            Tracer.Span span = TRACER.start("download");
+            try {
+                pdfFile = downloadPDF(pdfLoc);
+            } finally {
+                span.end();
+            }
+            recordStage(action, "download", startNanos);
+            event.size = pdfFile.length();
+
+            startNanos = System.nanoTime();
+            span = TRACER.start("load");
+            try {
+                document = PdfConverter.load(pdfFile);
+            } finally {
+                span.end();
+            }
+            recordStage(action, "load", startNanos);
+            event.pages = document.getNumberOfPages();
 
             String outputLoc = null;
             assert action != null;
             if (action.equals("ToImage"))
-                outputLoc = extractImagesFromPDF(document, pdfLoc);
+                outputLoc = extractImagesFromPDF(document, pdfLoc, outputBucket);
             else if (action.equals("ToHTML"))
-                outputLoc = convertPDFToHTML(document, pdfLoc);
+                outputLoc = convertPDFToHTML(document, pdfLoc, outputBucket);
             else if (action.equals("ToText"))
-                outputLoc = extractTextFromPDF(document, pdfLoc);
+                outputLoc = extractTextFromPDF(document, pdfLoc, outputBucket);
             else
                 System.out.println("Invalid action: " + action);
 
-            document.close();
-
             if (outputLoc == null) {
                 System.err.println("Failed to process pdf: " + pdfLoc);
                 return "Failed to process pdf: " + pdfLoc;
             }
 
+            event.outcome = "success";
             return outputLoc;
         } catch (Exception e) {
             System.err.println("Failed to process pdf: " + pdfLoc);
             return e.getMessage();
+        } finally {
+            if (document != null) {
+                try { document.close(); }
+                catch (IOException e) { System.err.println("Failed to close " + pdfLoc + ": " + e.getMessage()); }
+            }
+            if (pdfFile != null && !pdfFile.delete())
+                System.err.println("Failed to delete " + pdfFile);
+            event.commit();
         }
     }
 
-    private File downloadPDF(String pdfUrl, String messageReceiptHandle) throws IOException {
+    private File downloadPDF(String pdfUrl) throws IOException {
         URL url = new URL(pdfUrl);
         File tempFile = Files.createTempFile("downloaded_pdf", ".pdf").toFile();
 
+        WorkerEvents.Download event = new WorkerEvents.Download();
+        event.begin();
+        event.url = pdfUrl;
+        long fetched = 0;
+        boolean complete = false;
         try (InputStream inputStream = url.openStream();
              OutputStream outputStream = new FileOutputStream(tempFile)) {
 
-            long startTime = System.currentTimeMillis();
             byte[] buffer = new byte[8192];
             int bytesRead;
             while ((bytesRead = inputStream.read(buffer)) != -1) {
-                if (System.currentTimeMillis() - startTime > 10 * 1000) {
-                    sqsOperations.changeVisibilityTimeout(mwQueue, messageReceiptHandle, 30);
-                    startTime = System.currentTimeMillis();
-                }
                 outputStream.write(buffer, 0, bytesRead);
+                fetched += bytesRead;
             }
+            complete = true;
+        } finally {
+            // process() only gets to delete the file it was handed
+            if (!complete)
+                tempFile.delete();
+            FETCHED_BYTES.inc(fetched);
+            event.size = fetched;
+            event.commit();
         }
 
         return tempFile;
     }
 
-    public String extractImagesFromPDF(PDDocument document, String outputFilePath) throws IOException {
-        PDFRenderer renderer = new PDFRenderer(document);
-
+    public String extractImagesFromPDF(PDDocument document, String outputFilePath, String outputBucket) throws IOException {
         String outputImagePath = outputFilePath + ".png";
-        BufferedImage image = renderer.renderImageWithDPI(0, 300);
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ImageIO.write(image, "PNG", baos);
-        byte[] imageBytes = baos.toByteArray();
+        Tracer.Span span = TRACER.start("convert");
+        WorkerEvents.Conversion event = conversionEvent("ToImage", outputFilePath, document);
+        byte[] imageBytes;
+        try {
+            long startNanos = System.nanoTime();
+            BufferedImage image = PdfConverter.renderFirstPage(document, PdfConverter.IMAGE_DPI);
+            recordStage("ToImage", "render", startNanos);
+
+            startNanos = System.nanoTime();
+            imageBytes = PdfConverter.encodePng(image);
+            recordStage("ToImage", "encode", startNanos);
+            event.size = imageBytes.length;
+        } finally {
+            event.commit();
+            span.end();
+        }
 
-        String s3FileName = s3Operations.uploadBytesAsFile(bucket, outputImagePath, imageBytes);
+        String s3FileName = upload("ToImage", () -> s3().uploadBytesAsFile(outputBucket, outputImagePath, imageBytes));
         System.out.println("[ToImage] " + s3FileName + ": Succeeded");
 
         return s3FileName;
     }
 
-    private String extractTextFromPDF(PDDocument document, String outputFilePath) throws IOException {
-        PDFTextStripper pdfStripper = new PDFTextStripper();
-        pdfStripper.setSortByPosition(true); // Optional: Keeps the text in reading order
-        String content = pdfStripper.getText(document);
+    private String extractTextFromPDF(PDDocument document, String outputFilePath, String outputBucket) throws IOException {
+        WorkerEvents.Conversion event = conversionEvent("ToText", outputFilePath, document);
+        String content = extractText("ToText", document);
+        event.size = content.length();
+        event.commit();
 
         // Write content to a file
         String outputTextPath = outputFilePath + ".txt";
         //writeToFile(content, "processed_" + outputTextPath);
-        String s3FileName = s3Operations.uploadContentAsFile(bucket, outputTextPath, content);
+        String s3FileName = upload("ToText", () -> s3().uploadContentAsFile(outputBucket, outputTextPath, content));
         System.out.println("[ToText] " + s3FileName + ": Succeeded");
 
         return s3FileName;
     }
 
-    private String convertPDFToHTML(PDDocument document, String outputFilePath) throws IOException {
-        PDFTextStripper pdfStripper = new PDFTextStripper();
-        pdfStripper.setSortByPosition(true); // Optional: Keeps the text in reading order
-        String content = pdfStripper.getText(document);
+    private String convertPDFToHTML(PDDocument document, String outputFilePath, String outputBucket) throws IOException {
+        WorkerEvents.Conversion event = conversionEvent("ToHTML", outputFilePath, document);
+        String html = PdfConverter.toHtml(extractText("ToHTML", document));
+        event.size = html.length();
+        event.commit();
 
         String outputHtmlPath = outputFilePath + ".html";
         //writeToFile("<html><body><pre>" + content + "</pre></body></html>", "processed_" + outputHtmlPath);
-        String s3FileName = s3Operations.uploadContentAsFile(bucket, outputHtmlPath, "<html><body><pre>" + content + "</pre></body></html>");
+        String s3FileName = upload("ToHTML", () -> s3().uploadContentAsFile(outputBucket, outputHtmlPath, html));
         System.out.println("[ToHTML] " + s3FileName + ": Succeeded");
 
         return s3FileName;
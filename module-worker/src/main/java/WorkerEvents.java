@@ -0,0 +1,75 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Flight recorder events of the worker, under "PDF Worker" in JDK Mission Control next to the JVM's
+// allocation, GC and lock events. A commit without a running recording costs next to nothing
+final class WorkerEvents {
+
+    private static final String CATEGORY = "PDF Worker";
+
+    private WorkerEvents() {
+    }
+
+    @Name("worker.Task")
+    @Label("Task")
+    @Category(CATEGORY)
+    @Description("One task in Worker.process, from download to upload")
+    @StackTrace(false)
+    static final class Task extends Event {
+        @Label("URL")
+        String url;
+
+        @Label("Action")
+        String action;
+
+        @Label("PDF Size")
+        @DataAmount
+        long size;
+
+        @Label("Pages")
+        int pages;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("worker.Download")
+    @Label("Download")
+    @Category(CATEGORY)
+    @Description("Fetching the PDF of a task")
+    @StackTrace(false)
+    static final class Download extends Event {
+        @Label("URL")
+        String url;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name("worker.Conversion")
+    @Label("Conversion")
+    @Category(CATEGORY)
+    @Description("Turning a loaded PDF into the output of its action, the upload excluded")
+    @StackTrace(false)
+    static final class Conversion extends Event {
+        @Label("URL")
+        String url;
+
+        @Label("Action")
+        String action;
+
+        @Label("Pages")
+        int pages;
+
+        @Label("Output Size")
+        @DataAmount
+        long size;
+    }
+
+}
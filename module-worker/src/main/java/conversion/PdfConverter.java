@@ -0,0 +1,52 @@
+package conversion;
+
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+// The conversion steps of the worker, without S3 or the network around them so they can be
+// measured on their own (see module-benchmark)
+public class PdfConverter {
+
+    // ToImage renders the first page at this resolution
+    public static final float IMAGE_DPI = 300;
+
+    private PdfConverter() {
+    }
+
+    public static PDDocument load(File file) throws IOException {
+        return Loader.loadPDF(file);
+    }
+
+    public static PDDocument load(byte[] content) throws IOException {
+        return Loader.loadPDF(content);
+    }
+
+    public static BufferedImage renderFirstPage(PDDocument document, float dpi) throws IOException {
+        return new PDFRenderer(document).renderImageWithDPI(0, dpi);
+    }
+
+    public static byte[] encodePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(image, "PNG", baos);
+        return baos.toByteArray();
+    }
+
+    public static String extractText(PDDocument document) throws IOException {
+        PDFTextStripper pdfStripper = new PDFTextStripper();
+        pdfStripper.setSortByPosition(true); // Optional: Keeps the text in reading order
+        return pdfStripper.getText(document);
+    }
+
+    public static String toHtml(String text) {
+        return "<html><body><pre>" + text + "</pre></body></html>";
+    }
+
+}
@@ -0,0 +1,94 @@
+package operations;
+
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Jars and other build artifacts in a bucket that outlives the jobs, stored under their content
+// hash: s3://<bucket>/artifacts/<sha256>/<name>. A hash that is already there is never uploaded
+// again, and an instance that holds the hash in its local cache does not download it again
+public class ArtifactStore {
+
+    // On the instances, kept across reboots and filled in ahead of time on a prepared AMI
+    public static final String CACHE_DIRECTORY = "/var/cache/pdf-artifacts";
+
+    private static final Pattern HASHED_URL = Pattern.compile("s3://[^/]+/(artifacts/([0-9a-f]{64})/[^/]+)");
+
+    private final S3Operations s3Operations;
+    private final String bucket;
+
+    public ArtifactStore(S3Operations s3Operations, String bucket) {
+        this.s3Operations = s3Operations;
+        this.bucket = bucket;
+        if (!s3Operations.doesBucketExist(bucket))
+            s3Operations.createBucket(bucket);
+    }
+
+    // Uploads the file unless its hash is already stored, returns its s3:// URL
+    public String publish(File file) {
+        String key = "artifacts/" + sha256(file) + "/" + file.getName();
+        if (exists(key)) {
+            System.out.println("Artifact " + file.getName() + " already stored as " + key);
+        } else {
+            System.out.println("Uploading artifact " + file.getName() + " (" + file.length() + " bytes) as " + key);
+            s3Operations.uploadFile(bucket, key, file);
+        }
+        return "s3://" + bucket + "/" + key;
+    }
+
+    private boolean exists(String key) {
+        try {
+            s3Operations.headFile(bucket, key);
+            return true;
+        } catch (S3Exception e) {
+            if (e.statusCode() == 404)
+                return false;
+            throw e;
+        }
+    }
+
+    // Bash lines that put the artifact at target. A cached copy is used if its hash still matches,
+    // anything else is downloaded into the cache first. URLs without a hash are always downloaded
+    public static String fetchScript(String url, String target) {
+        Matcher matcher = HASHED_URL.matcher(url);
+        if (!matcher.matches())
+            return String.format("aws s3 cp %s %s\n", url, target);
+
+        String cached = CACHE_DIRECTORY + "/" + matcher.group(1);
+        return String.format("if ! echo \"%s  %s\" | sha256sum -c --status 2>/dev/null; then\n" +
+                        "  mkdir -p $(dirname %s) && aws s3 cp %s %s.tmp && mv %s.tmp %s\n" +
+                        "fi\n" +
+                        "cp %s %s\n",
+                matcher.group(2), cached, cached, url, cached, cached, cached, cached, target);
+    }
+
+    public static String sha256(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
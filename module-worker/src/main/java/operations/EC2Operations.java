@@ -4,7 +4,9 @@ import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.model.*;
 
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collection;
 import java.util.List;
 
 public class EC2Operations {
@@ -15,8 +17,11 @@ public class EC2Operations {
     private final String IMAGE_AMI = "ami-00e95a9222311e8ed";
     private final InstanceType INSTANCE_TYPE = InstanceType.T2_MICRO;
 
+    // TerminateInstances accepts at most 1000 ids per call
+    private static final int TERMINATE_BATCH_SIZE = 1000;
+
     public EC2Operations(Region region) {
-        this.ec2Client = Ec2Client.builder().region(region).build();
+        this.ec2Client = Ec2Client.builder().region(region).overrideConfiguration(Metrics.clientConfiguration()).build();
     }
 
     // Instance operations
@@ -45,23 +50,43 @@ public class EC2Operations {
         );
     }
 
+    public void terminateInstances(Collection<String> instanceIds) {
+        List<String> ids = new ArrayList<>(instanceIds);
+        for (int from = 0; from < ids.size(); from += TERMINATE_BATCH_SIZE) {
+            List<String> batch = ids.subList(from, Math.min(from + TERMINATE_BATCH_SIZE, ids.size()));
+            System.out.println("Terminating " + batch.size() + " instances");
+            ec2Client.terminateInstances(
+                    builder -> builder.instanceIds(batch)
+            );
+        }
+    }
+
     public String[] getAllInstances() {
-        return ec2Client.describeInstances().reservations().stream()
-                .flatMap(reservation -> reservation.instances().stream())
+        return describeInstances(new ArrayList<>()).stream()
                 .map(Instance::instanceId)
                 .toArray(String[]::new);
     }
 
+    // Pending and running instances only; tag and state are filtered by EC2, not on the client
     public String[] getAllInstancesWithTag(String key, String value) {
-        return ec2Client.describeInstances().reservations().stream()
-                .flatMap(reservation -> reservation.instances().stream())
-                .filter(instance -> instance.tags().stream().anyMatch(tag -> tag.key().equals(key) && tag.value().equals(value)))
+        List<Filter> filters = new ArrayList<>();
+        filters.add(Filter.builder().name("tag:" + key).values(value).build());
+        filters.add(Filter.builder().name("instance-state-name")
+                .values(InstanceStateName.PENDING.toString(), InstanceStateName.RUNNING.toString()).build());
+
+        return describeInstances(filters).stream()
                 .map(Instance::instanceId)
                 .toArray(String[]::new);
     }
 
     public Instance[] getAllInstanceObjects() {
-        return ec2Client.describeInstances().reservations().stream()
-                .flatMap(reservation -> reservation.instances().stream()).toArray(Instance[]::new);
+        return describeInstances(new ArrayList<>()).toArray(new Instance[0]);
+    }
+
+    private List<Instance> describeInstances(List<Filter> filters) {
+        List<Instance> instances = new ArrayList<>();
+        ec2Client.describeInstancesPaginator(builder -> builder.filters(filters)).reservations()
+                .forEach(reservation -> instances.addAll(reservation.instances()));
+        return instances;
     }
 }
@@ -0,0 +1,94 @@
+package operations;
+
+import software.amazon.awssdk.services.ec2.model.Tag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps track of the instances this process launched, so most lookups need no EC2 call at all.
+// Instances launched elsewhere are found with a filtered describe, cached for ttlMillis.
+public class InstanceRegistry {
+
+    private final EC2Operations ec2Operations;
+    private final long ttlMillis;
+
+    // instance id -> tags it was launched with
+    private final Map<String, List<Tag>> launched = new ConcurrentHashMap<>();
+    // "key=value" -> last describe result
+    private final Map<String, CachedLookup> lookups = new ConcurrentHashMap<>();
+
+    public InstanceRegistry(EC2Operations ec2Operations, long ttlMillis) {
+        this.ec2Operations = ec2Operations;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public String[] runInstances(String script, int min, int max, List<Tag> tags) {
+        String[] instanceIds = ec2Operations.runInstances(script, min, max, tags);
+        for (String instanceId : instanceIds) {
+            launched.put(instanceId, tags);
+        }
+        lookups.clear();
+        return instanceIds;
+    }
+
+    // Instances this process launched with the tag, or else the ones EC2 reports
+    public String[] getInstancesWithTag(String key, String value) {
+        List<String> tracked = new ArrayList<>();
+        for (Map.Entry<String, List<Tag>> entry : launched.entrySet()) {
+            for (Tag tag : entry.getValue()) {
+                if (tag.key().equals(key) && tag.value().equals(value))
+                    tracked.add(entry.getKey());
+            }
+        }
+        if (!tracked.isEmpty())
+            return tracked.toArray(new String[0]);
+
+        return getActiveInstancesWithTag(key, value);
+    }
+
+    // Pending and running instances with the tag as EC2 reports them, at most ttlMillis old
+    public String[] getActiveInstancesWithTag(String key, String value) {
+        String lookupKey = key + "=" + value;
+        CachedLookup cached = lookups.get(lookupKey);
+        if (cached != null && System.currentTimeMillis() - cached.time < ttlMillis)
+            return cached.instanceIds;
+
+        String[] instanceIds = ec2Operations.getAllInstancesWithTag(key, value);
+        lookups.put(lookupKey, new CachedLookup(instanceIds));
+        return instanceIds;
+    }
+
+    // One TerminateInstances call for all the ids, however many there are
+    public void terminateInstances(Collection<String> instanceIds) {
+        if (instanceIds.isEmpty())
+            return;
+
+        ec2Operations.terminateInstances(instanceIds);
+        for (String instanceId : instanceIds) {
+            launched.remove(instanceId);
+        }
+        lookups.clear();
+    }
+
+    public void terminateInstancesWithTag(String key, String value) {
+        terminateInstances(Arrays.asList(getInstancesWithTag(key, value)));
+    }
+
+    public void invalidate() {
+        lookups.clear();
+    }
+
+    private static class CachedLookup {
+        private final String[] instanceIds;
+        private final long time;
+
+        private CachedLookup(String[] instanceIds) {
+            this.instanceIds = instanceIds;
+            this.time = System.currentTimeMillis();
+        }
+    }
+}
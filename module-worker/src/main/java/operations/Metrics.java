@@ -0,0 +1,301 @@
+package operations;
+
+import com.sun.net.httpserver.HttpServer;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+import software.amazon.awssdk.metrics.SdkMetric;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// Counters, histograms and gauges of this process, in the Prometheus text format. Recording is a map
+// lookup and a few adder increments, the text is only built when the metrics are scraped from
+// http://<host>:<metrics.port>/metrics or dumped to s3://<metrics.bucket>/metrics/<name>/<millis>.prom
+public final class Metrics {
+
+    // Seconds, from a single API call to rendering a large document
+    public static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300};
+
+    private static final int DEFAULT_PORT = 9400;
+    private static final int DEFAULT_DUMP_SECONDS = 60;
+
+    private static final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    // Every API call of the SDK clients the operations classes build, retries included
+    private static final ClientOverrideConfiguration CLIENT_CONFIGURATION =
+            ClientOverrideConfiguration.builder().addMetricPublisher(new SdkMetrics()).build();
+
+    private static HttpServer server;
+    private static ScheduledExecutorService dumper;
+    private static Runnable dump;
+
+    static {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        gauge("jvm_heap_used_bytes", "Heap in use", () -> memory.getHeapMemoryUsage().getUsed());
+        gauge("jvm_heap_committed_bytes", "Heap committed by the JVM", () -> memory.getHeapMemoryUsage().getCommitted());
+        gauge("jvm_heap_max_bytes", "Largest heap the JVM may use", () -> memory.getHeapMemoryUsage().getMax());
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gauge("jvm_gc_collections", "Collections so far", gc::getCollectionCount, "gc", gc.getName());
+            gauge("jvm_gc_seconds", "Time spent collecting so far", () -> gc.getCollectionTime() / 1000.0, "gc", gc.getName());
+        }
+        gauge("jvm_threads", "Live threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+    }
+
+    private Metrics() {
+    }
+
+    // Labels are name, value pairs
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").series(labels(labels), key -> new Counter());
+    }
+
+    public static Histogram histogram(String name, String help, String... labels) {
+        return histogram(name, help, LATENCY_BUCKETS, labels);
+    }
+
+    public static Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return (Histogram) family(name, help, "histogram").series(labels(labels), key -> new Histogram(buckets));
+    }
+
+    // Read when the metrics are scraped
+    public static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "gauge").series.put(labels(labels), value);
+    }
+
+    public static ClientOverrideConfiguration clientConfiguration() {
+        return CLIENT_CONFIGURATION;
+    }
+
+    // computeIfAbsent locks even when the key is there, the get() keeps recording lock free
+    private static Family family(String name, String help, String type) {
+        Family family = families.get(name);
+        return family != null ? family : families.computeIfAbsent(name, key -> new Family(help, type));
+    }
+
+    private static String labels(String[] labels) {
+        if (labels.length == 0)
+            return "";
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0)
+                text.append(',');
+            text.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return text.append('}').toString();
+    }
+
+    // Exposition
+
+    // Serves the metrics on -Dmetrics.port (9400, -1 for none) and, if -Dmetrics.bucket is set, dumps them
+    // to that bucket every -Dmetrics.dumpSeconds. A failure to export never stops the process
+    public static synchronized void startExport(String name, Supplier<S3Operations> s3Operations) {
+        int port = Integer.getInteger("metrics.port", DEFAULT_PORT);
+        if (port >= 0 && server == null) {
+            try {
+                server = HttpServer.create(new InetSocketAddress(port), 0);
+                server.createContext("/metrics", exchange -> {
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                server.start();
+                System.out.println("[metrics] serving on port " + server.getAddress().getPort());
+            } catch (IOException e) {
+                System.err.println("[metrics] could not listen on port " + port + ": " + e.getMessage());
+                server = null;
+            }
+        }
+
+        String bucket = System.getProperty("metrics.bucket", "");
+        if (!bucket.isEmpty() && dumper == null) {
+            dump = () -> {
+                try {
+                    s3Operations.get().uploadContentAsFile(bucket, "metrics/" + name + "/" + System.currentTimeMillis() + ".prom", scrape());
+                } catch (Exception e) {
+                    System.err.println("[metrics] dump failed: " + e.getMessage());
+                }
+            };
+            int interval = Integer.getInteger("metrics.dumpSeconds", DEFAULT_DUMP_SECONDS);
+            dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            dumper.scheduleWithFixedDelay(dump, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    // One last dump, then the endpoint goes away so the JVM can exit
+    public static synchronized void stopExport() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dump.run();
+            dumper = null;
+        }
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    public static String scrape() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Family> entry : new TreeMap<>(families).entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            text.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : new TreeMap<>(family.series).entrySet()) {
+                Object metric = series.getValue();
+                if (metric instanceof Histogram)
+                    ((Histogram) metric).write(text, name, series.getKey());
+                else
+                    text.append(name).append(series.getKey()).append(' ')
+                            .append(format(metric instanceof Counter ? ((Counter) metric).get() : ((DoubleSupplier) metric).getAsDouble()))
+                            .append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    private static final class Family {
+        private final String help;
+        private final String type;
+        // Label text to Counter, Histogram or DoubleSupplier
+        private final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+
+        private Object series(String labels, Function<String, Object> create) {
+            Object metric = series.get(labels);
+            return metric != null ? metric : series.computeIfAbsent(labels, create);
+        }
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void inc(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static final class Histogram {
+        private final double[] bounds;
+        // Per bucket, made cumulative when written
+        private final LongAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            counts[bucket].increment();
+            sum.add(value);
+        }
+
+        public void observeNanos(long nanos) {
+            observe(nanos / 1e9);
+        }
+
+        // Seconds since a System.nanoTime() reading
+        public void observeSince(long startNanos) {
+            observeNanos(System.nanoTime() - startNanos);
+        }
+
+        private void write(StringBuilder text, String name, String labels) {
+            String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+            long cumulative = 0;
+            for (int i = 0; i <= bounds.length; i++) {
+                cumulative += counts[i].sum();
+                text.append(name).append("_bucket").append(prefix)
+                        .append("le=\"").append(i < bounds.length ? Double.toString(bounds[i]) : "+Inf").append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            text.append(name).append("_sum").append(labels).append(' ').append(format(sum.sum())).append('\n');
+            text.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    // Receives the SDK's metrics of every API call once the call is over, on the calling thread
+    private static final class SdkMetrics implements MetricPublisher {
+
+        @Override
+        public void publish(MetricCollection call) {
+            String service = first(call, CoreMetric.SERVICE_ID, "unknown");
+            String operation = first(call, CoreMetric.OPERATION_NAME, "unknown");
+            boolean successful = first(call, CoreMetric.API_CALL_SUCCESSFUL, false);
+
+            counter("aws_api_calls_total", "AWS API calls by service, operation and outcome",
+                    "service", service, "operation", operation, "outcome", successful ? "success" : "error").inc();
+            int retries = first(call, CoreMetric.RETRY_COUNT, 0);
+            if (retries > 0)
+                counter("aws_api_retries_total", "Attempts the SDK repeated after a throttled or failed attempt",
+                        "service", service, "operation", operation).inc(retries);
+            Duration duration = first(call, CoreMetric.API_CALL_DURATION, null);
+            if (duration != null)
+                histogram("aws_api_call_seconds", "AWS API call latency, retries included",
+                        "service", service, "operation", operation).observeNanos(duration.toNanos());
+        }
+
+        private static <T> T first(MetricCollection call, SdkMetric<T> metric, T otherwise) {
+            List<T> values = call.metricValues(metric);
+            return values.isEmpty() || values.get(0) == null ? otherwise : values.get(0);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
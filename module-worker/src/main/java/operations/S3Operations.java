@@ -4,20 +4,28 @@ import software.amazon.awssdk.auth.credentials.ProfileCredentialsProvider;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
 import software.amazon.awssdk.services.s3.model.S3Object;
 
 import java.io.File;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class S3Operations {
 
+    private static final Metrics.Counter UPLOADED_BYTES = Metrics.counter("s3_uploaded_bytes_total", "Bytes uploaded to S3");
+
     private final S3Client s3Client;
     private final Region region;
 
     public S3Operations(Region region) {
-        this.s3Client = S3Client.builder().region(region).build();
+        this.s3Client = S3Client.builder().region(region).overrideConfiguration(Metrics.clientConfiguration()).build();
         this.region = region;
     }
 
@@ -62,27 +70,68 @@ public class S3Operations {
                 builder -> builder.bucket(bucketName).key(key).build(),
                 file.toPath()
         );
+        UPLOADED_BYTES.inc(file.length());
         return "s3://" + bucketName + "/" + key;
     }
 
     public String uploadContentAsFile(String bucketName, String key, String content) {
         System.out.println("Uploading content to bucket " + bucketName);
+        RequestBody body = RequestBody.fromString(content);
         s3Client.putObject(
                 builder -> builder.bucket(bucketName).key(key).build(),
-                RequestBody.fromString(content)
+                body
         );
+        UPLOADED_BYTES.inc(body.optionalContentLength().orElse(0L));
         return "s3://" + bucketName + "/" + key;
     }
 
     public String uploadBytesAsFile(String bucketName, String key, byte[] content) {
         System.out.println("Uploading content to bucket " + bucketName);
+        RequestBody body = RequestBody.fromBytes(content);
         s3Client.putObject(
                 builder -> builder.bucket(bucketName).key(key).build(),
+                body
+        );
+        UPLOADED_BYTES.inc(body.optionalContentLength().orElse(0L));
+        return "s3://" + bucketName + "/" + key;
+    }
+
+    // Multipart upload operations
+
+    public String createMultipartUpload(String bucketName, String key) {
+        System.out.println("Starting multipart upload of " + key + " to bucket " + bucketName);
+        return s3Client.createMultipartUpload(
+                builder -> builder.bucket(bucketName).key(key)
+        ).uploadId();
+    }
+
+    // Every part but the last must be at least 5 MB
+    public CompletedPart uploadPart(String bucketName, String key, String uploadId, int partNumber, byte[] content) {
+        System.out.println("Uploading part " + partNumber + " of " + key + " to bucket " + bucketName);
+        String eTag = s3Client.uploadPart(
+                builder -> builder.bucket(bucketName).key(key).uploadId(uploadId).partNumber(partNumber),
                 RequestBody.fromBytes(content)
+        ).eTag();
+        UPLOADED_BYTES.inc(content.length);
+        return CompletedPart.builder().partNumber(partNumber).eTag(eTag).build();
+    }
+
+    public String completeMultipartUpload(String bucketName, String key, String uploadId, List<CompletedPart> parts) {
+        System.out.println("Completing multipart upload of " + key + " to bucket " + bucketName);
+        s3Client.completeMultipartUpload(
+                builder -> builder.bucket(bucketName).key(key).uploadId(uploadId)
+                        .multipartUpload(upload -> upload.parts(parts))
         );
         return "s3://" + bucketName + "/" + key;
     }
 
+    public void abortMultipartUpload(String bucketName, String key, String uploadId) {
+        System.out.println("Aborting multipart upload of " + key + " to bucket " + bucketName);
+        s3Client.abortMultipartUpload(
+                builder -> builder.bucket(bucketName).key(key).uploadId(uploadId)
+        );
+    }
+
     public void downloadFile(String bucketName, String key, File file) {
         System.out.println("Downloading file " + key + " from bucket " + bucketName);
 
@@ -107,6 +156,28 @@ public class S3Operations {
         }
     }
 
+    // The caller reads the object while it downloads and must close the stream
+    public InputStream getFileStream(String bucketName, String key) {
+        System.out.println("Streaming file " + key + " from bucket " + bucketName);
+        return s3Client.getObject(
+                builder -> builder.bucket(bucketName).key(key).build()
+        );
+    }
+
+    // Streams the object from offset on, only if it still has the given ETag
+    public InputStream getFileStream(String bucketName, String key, long offset, String eTag) {
+        System.out.println("Streaming file " + key + " from bucket " + bucketName + " from byte " + offset);
+        return s3Client.getObject(
+                builder -> builder.bucket(bucketName).key(key).range("bytes=" + offset + "-").ifMatch(eTag).build()
+        );
+    }
+
+    public HeadObjectResponse headFile(String bucketName, String key) {
+        return s3Client.headObject(
+                builder -> builder.bucket(bucketName).key(key).build()
+        );
+    }
+
     public void deleteFile(String bucketName, String key) {
         System.out.println("Deleting file " + key + " from bucket " + bucketName);
         s3Client.deleteObject(
@@ -121,6 +192,30 @@ public class S3Operations {
         ).contents().stream().map(S3Object::key).toArray(String[]::new);
     }
 
+    // All keys under the prefix, across as many list pages as needed
+    public List<String> listFiles(String bucketName, String prefix) {
+        System.out.println("Listing files under " + prefix + " in bucket " + bucketName);
+        List<String> keys = new ArrayList<>();
+        s3Client.listObjectsV2Paginator(
+                builder -> builder.bucket(bucketName).prefix(prefix).build()
+        ).contents().forEach(object -> keys.add(object.key()));
+        return keys;
+    }
+
+    // Deletes up to 1000 keys per request
+    public void deleteFiles(String bucketName, List<String> keys) {
+        System.out.println("Deleting " + keys.size() + " files from bucket " + bucketName);
+        for (int i = 0; i < keys.size(); i += 1000) {
+            List<ObjectIdentifier> objects = new ArrayList<>();
+            for (String key : keys.subList(i, Math.min(i + 1000, keys.size()))) {
+                objects.add(ObjectIdentifier.builder().key(key).build());
+            }
+            s3Client.deleteObjects(
+                    builder -> builder.bucket(bucketName).delete(delete -> delete.objects(objects))
+            );
+        }
+    }
+
     public boolean doesFileExist(String bucketName, String key) {
         String[] files = listFiles(bucketName);
         return Arrays.asList(files).contains(key);
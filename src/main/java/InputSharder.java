@@ -0,0 +1,152 @@
+import operations.S3Operations;
+import operations.SQSOperations;
+import operations.Tracer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Uploads a large input as shards of about shardSize bytes, cut at line ends, parallelism at a time.
+// Each shard is announced on lmQueue as soon as it is stored, so the manager reads and dispatches
+// the first shards while the rest are still uploading:
+// shard\t<input url>\t<index>\t<first task id>\t<shard count, - but for the last shard>\t<shard url>
+public class InputSharder {
+
+    private static final Tracer TRACER = new Tracer("local-app");
+
+    private final S3Operations s3Operations;
+    private final SQSOperations sqsOperations;
+    private final String bucket;
+    private final String lmQueue;
+    private final long shardSize;
+    private final int parallelism;
+
+    public InputSharder(S3Operations s3Operations, SQSOperations sqsOperations, String bucket, String lmQueue,
+                        long shardSize, int parallelism) {
+        this.s3Operations = s3Operations;
+        this.sqsOperations = sqsOperations;
+        this.bucket = bucket;
+        this.lmQueue = lmQueue;
+        this.shardSize = shardSize;
+        this.parallelism = parallelism;
+    }
+
+    private static class Shard {
+        private final int index;
+        private final long offset;
+        private final int length;
+        private final int firstTaskId;
+
+        private Shard(int index, long offset, int length, int firstTaskId) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+            this.firstTaskId = firstTaskId;
+        }
+    }
+
+    // Returns the number of shards, stored as <key>.shard-NNNNNN next to where the whole input would be
+    public int upload(File input, String key) throws IOException {
+        String inputUrl = "s3://" + bucket + "/" + key;
+        long startTime = System.currentTimeMillis();
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Future<?>> uploads = new ArrayList<>();
+        try {
+            // A shard is handed over once the next one is cut, only then it is known whether it is the last
+            Shard pending = null;
+            int index = 0;
+            long shardStart = 0;
+            long position = 0;
+            // Task ids count the lines that are not blank, like the manager does when reading
+            int tasks = 0;
+            int shardFirstTask = 0;
+            boolean blank = true;
+
+            byte[] buffer = new byte[1024 * 1024];
+            try (InputStream in = new FileInputStream(input)) {
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) != -1) {
+                    for (int i = 0; i < bytesRead; i++) {
+                        byte b = buffer[i];
+                        position++;
+                        if (b == '\n' || b == '\r') {
+                            if (!blank)
+                                tasks++;
+                            blank = true;
+
+                            if (position - shardStart >= shardSize) {
+                                if (pending != null)
+                                    uploads.add(executor.submit(uploadTask(input, pending, inputUrl, key, -1)));
+                                pending = new Shard(index++, shardStart, (int) (position - shardStart), shardFirstTask);
+                                shardStart = position;
+                                shardFirstTask = tasks;
+                            }
+                        } else if ((b & 0xff) > ' ') {
+                            blank = false;
+                        }
+                    }
+                }
+            }
+
+            if (position > shardStart) {
+                if (pending != null)
+                    uploads.add(executor.submit(uploadTask(input, pending, inputUrl, key, -1)));
+                pending = new Shard(index++, shardStart, (int) (position - shardStart), shardFirstTask);
+            }
+            if (pending != null)
+                uploads.add(executor.submit(uploadTask(input, pending, inputUrl, key, index)));
+
+            for (Future<?> upload : uploads) {
+                upload.get();
+            }
+
+            long millis = Math.max(1, System.currentTimeMillis() - startTime);
+            System.out.println(String.format("Uploaded %s as %d shards: %.1f MB in %.1fs (%.2f MB/s)",
+                    input.getName(), index, position / 1e6, millis / 1000.0, position / 1e3 / millis));
+            return index;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Failed to upload the shards of " + input.getName(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Runnable uploadTask(File input, Shard shard, String inputUrl, String key, int shardCount) {
+        // Made on the submitting thread, the job's span is current there
+        Tracer.Context job = Tracer.current();
+        return () -> {
+            Tracer.Span span = TRACER.start("upload_shard", job).tag("shard", String.valueOf(shard.index));
+            try (Tracer.Scope scope = span.makeCurrent()) {
+                upload(input, shard, inputUrl, key, shardCount);
+            } finally {
+                span.end();
+            }
+        };
+    }
+
+    private void upload(File input, Shard shard, String inputUrl, String key, int shardCount) {
+        byte[] content = new byte[shard.length];
+        try (RandomAccessFile file = new RandomAccessFile(input, "r")) {
+            file.seek(shard.offset);
+            file.readFully(content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        String shardKey = String.format("%s.shard-%06d", key, shard.index);
+        s3Operations.uploadBytesAsFile(bucket, shardKey, content);
+        sqsOperations.sendMessage(lmQueue, String.format("shard\t%s\t%d\t%d\t%s\ts3://%s/%s",
+                inputUrl, shard.index, shard.firstTaskId, shardCount > 0 ? String.valueOf(shardCount) : "-", bucket, shardKey));
+    }
+
+}
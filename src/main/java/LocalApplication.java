@@ -1,138 +1,81 @@
-import operations.EC2Operations;
-import operations.S3Operations;
-import operations.SQSOperations;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.ec2.model.Tag;
-import software.amazon.awssdk.services.sqs.model.Message;
-
 import java.io.File;
-import java.util.Collections;
-import java.util.List;
-import java.util.Objects;
-import java.util.UUID;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 
+// Command line front end of PdfConversionClient: converts one input file and optionally
+// shuts the manager down afterwards
 public class LocalApplication {
 
-    private final S3Operations s3Operations;
-    private final SQSOperations sqsOperations;
-    private final EC2Operations ec2Operations;
-
-    private final String bucket = "bucket-" + UUID.randomUUID();
-
-    private final String lmQueue = "lm-queue-" + UUID.randomUUID();
-    private final String mlQueue = "ml-queue-" + UUID.randomUUID();
-    private final String registerQueue = "r-queue-31415926535";
-
-    public LocalApplication() {
-        Region region = Region.US_EAST_1;
-        this.s3Operations = new S3Operations(region);
-        this.sqsOperations = new SQSOperations(region);
-        this.ec2Operations = new EC2Operations(region);
-
-        sqsOperations.createQueue(lmQueue);
-        sqsOperations.createQueue(mlQueue);
-        if (Objects.equals(sqsOperations.getQueueUrl(registerQueue), ""))
-            sqsOperations.createQueue(registerQueue);
-    }
-
-    public void transferFile(String inputPath) {
-        if(!s3Operations.doesBucketExist(bucket)){
-            s3Operations.createBucket(bucket);
-        }
-        s3Operations.uploadFile(bucket, inputPath, new File(inputPath));
-        sqsOperations.sendMessage(lmQueue, "s3://" + bucket + "/" + inputPath);
-    }
-
-    public void activateManager(int docsPerWorker) {
-        s3Operations.uploadFile(bucket, "manager.jar", new File("jars/manager.jar"));
-        s3Operations.uploadFile(bucket, "worker.jar", new File("jars/worker.jar"));
-
-        String script = String.format("#!/bin/bash\necho \"Downloading manager.jar\"\ncd /home/ec2-user\naws s3 cp s3://%s/manager.jar .\njava -jar manager.jar %d %s %s %s", bucket, docsPerWorker, lmQueue, mlQueue, bucket);
-
-        String[] managersActive = ec2Operations.getAllInstancesWithTag("type", "manager");
-        if (managersActive.length > 0) {
-            System.out.println("Manager already active");
-            sqsOperations.sendMessage(registerQueue, String.format("manager;%d;%s;%s;%s", docsPerWorker, lmQueue, mlQueue, bucket));
-            return;
-        }
-        ec2Operations.runInstances(script, 1, 1,
-                Collections.singletonList(Tag.builder().key("type").value("manager").build()));
-    }
+    // Concurrent GETs when downloading the outputs
+    private static final int DOWNLOAD_PARALLELISM = 8;
 
-    public String getSummaryFile(){
-        String summaryFile = null;
-        while(true) {
-            List<Message> messages = sqsOperations.receiveMessages(mlQueue);
-            if (!messages.isEmpty()) {
-                System.out.println("Received message: " + messages.get(0).body());
-                summaryFile = messages.get(0).body();
-                break;
-            }
-            // wait
-            try { Thread.sleep(1000); }
-            catch (InterruptedException e) { e.printStackTrace(); }
-        }
-
-        return summaryFile;
-    }
-
-    public void terminateManager(){
-        sqsOperations.sendMessage(lmQueue, "terminate");
-    }
-
-    public void localAppCleanup() {
-        s3Operations.deleteBucket(bucket);
-        sqsOperations.deleteQueue(lmQueue);
-        sqsOperations.deleteQueue(mlQueue);
-    }
-
-    public void downloadFile(String summaryFile, String outputPath) {
-        s3Operations.downloadFile(bucket, summaryFile, new File(outputPath + ".html"));
-    }
+    private static final String USAGE = "Usage: LocalApplication <input-file> <output-file> <n> [terminate] [high|normal|low] [--progress <seconds>] [--preflight] [--download <directory>] [--trace <file>]";
 
     public static void main(String[] args) {
-        if (args.length < 3 || args.length > 4)
-            throw new IllegalArgumentException("Usage: LocalApplication <input-file> <output-file> <n> [terminate]");
+        if (args.length < 3 || args.length > 12)
+            throw new IllegalArgumentException(USAGE);
 
         long startTime = System.currentTimeMillis();
 
         String inputFile = args[0];
         String outputFile = args[1];
         int n = Integer.parseInt(args[2]);
-        boolean terminate = args.length == 4 && args[3].equals("terminate");
-
-        LocalApplication la = new LocalApplication();
-
-        la.transferFile(inputFile);
-
-        la.activateManager(n);
-
-        String summaryFile = la.getSummaryFile();
-        if (summaryFile != null) {
-            System.out.println("Summary file received: " + summaryFile);
-            la.downloadFile(summaryFile, outputFile);
+        boolean terminate = false;
+        // The manager shares workers between local apps by priority class, NORMAL unless given
+        String priority = "normal";
+        // Progress and partial results every this many seconds, 0 for only the final summary
+        int progressInterval = 0;
+        // HEAD every PDF first, biggest documents are dispatched first and dead links never reach a worker
+        boolean preflight = false;
+        // Also fetch every converted file the summary links to into this directory
+        String downloadDirectory = null;
+        // Spans of the job, from upload to summary, as Zipkin JSON
+        String traceFile = null;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("terminate"))
+                terminate = true;
+            else if (args[i].equals("--progress") && i + 1 < args.length)
+                progressInterval = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--preflight"))
+                preflight = true;
+            else if (args[i].equals("--download") && i + 1 < args.length)
+                downloadDirectory = args[++i];
+            else if (args[i].equals("--trace") && i + 1 < args.length)
+                traceFile = args[++i];
+            else if (args[i].equals("high") || args[i].equals("normal") || args[i].equals("low"))
+                priority = args[i];
+            else
+                throw new IllegalArgumentException("Unknown argument " + args[i] + "\n" + USAGE);
         }
 
-        if (terminate) {
-            la.terminateManager();
-
-            //wait for terminated conformation
-            while (true) {
-                Message message = la.sqsOperations.receiveMessage(la.mlQueue);
-                if ((message != null && message.body().equals("terminated")) ||
-                        la.ec2Operations.getAllInstancesWithTag("type", "manager").length == 0) {
-                    System.out.println("Manager terminated");
-                    break;
-                }
-
-                // wait
-                try { Thread.sleep(1000); }
-                catch (InterruptedException e) { e.printStackTrace(); }
+        PdfConversionClient.Config config = new PdfConversionClient.Config()
+                .docsPerWorker(n)
+                .priority(priority)
+                .progressIntervalSeconds(progressInterval)
+                .preflight(preflight)
+                .traceFile(traceFile);
+
+        try (PdfConversionClient client = new PdfConversionClient(config)) {
+            PdfConversionClient.JobOptions options = new PdfConversionClient.JobOptions()
+                    .outputPath(outputFile)
+                    .progress((completed, failed, total, chunk) ->
+                            System.out.println("Progress: " + completed + "/" + total + " done, " + failed + " failed"));
+
+            PdfConversionClient.JobResult result = client.submit(new File(inputFile), options).get();
+            System.out.println("Summary file received: " + result.getSummaryKey());
+
+            // Before the client closes, the outputs are in its bucket
+            if (downloadDirectory != null)
+                client.downloadOutputs(result, new File(downloadDirectory), DOWNLOAD_PARALLELISM);
+
+            if (terminate) {
+                // wait for terminated confirmation
+                client.terminateManager().get();
             }
+        } catch (InterruptedException | ExecutionException | IOException e) {
+            e.printStackTrace();
         }
 
-        la.localAppCleanup();
-
         long endTime = System.currentTimeMillis();
         System.out.println("Execution time: " + (endTime - startTime) + "ms");
     }
@@ -0,0 +1,157 @@
+import operations.S3Operations;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Downloads every s3:// output a summary links to into a directory, at most parallelism at a time.
+// A file whose size and ETag match the object is skipped, an interrupted download continues from
+// its .part file as long as the object did not change in between
+public class OutputDownloader {
+
+    // <p>action\tpdfUrl\ts3://bucket/key</p>, the summary escapes the key
+    private static final Pattern OUTPUT_LINK = Pattern.compile("s3://([^/\\s<]+)/([^\\t<]+)");
+
+    private final S3Operations s3Operations;
+    private final int parallelism;
+
+    private final AtomicInteger downloaded = new AtomicInteger(0);
+    private final AtomicInteger skipped = new AtomicInteger(0);
+    private final AtomicInteger failed = new AtomicInteger(0);
+    private final AtomicLong bytes = new AtomicLong(0);
+
+    public OutputDownloader(S3Operations s3Operations, int parallelism) {
+        this.s3Operations = s3Operations;
+        this.parallelism = parallelism;
+    }
+
+    public void downloadAll(File summary, File directory) throws IOException {
+        List<String[]> outputs = parseOutputs(new String(Files.readAllBytes(summary.toPath()), StandardCharsets.UTF_8));
+        System.out.println("Downloading " + outputs.size() + " outputs to " + directory);
+
+        long startTime = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        for (String[] output : outputs) {
+            executor.execute(() -> download(output[0], output[1], new File(directory, localPath(output[1]))));
+        }
+        executor.shutdown();
+        try { executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS); }
+        catch (InterruptedException e) { e.printStackTrace(); }
+
+        long millis = Math.max(1, System.currentTimeMillis() - startTime);
+        System.out.println(String.format("Downloaded %d, skipped %d, failed %d outputs: %.1f MB in %.1fs (%.2f MB/s)",
+                downloaded.get(), skipped.get(), failed.get(), bytes.get() / 1e6, millis / 1000.0, bytes.get() / 1e3 / millis));
+    }
+
+    // Unique bucket and key pairs, in summary order
+    private List<String[]> parseOutputs(String html) {
+        Set<String> seen = new LinkedHashSet<>();
+        List<String[]> outputs = new ArrayList<>();
+        Matcher matcher = OUTPUT_LINK.matcher(html);
+        while (matcher.find()) {
+            String bucket = matcher.group(1);
+            String key = unescapeHTML(matcher.group(2));
+            if (seen.add(bucket + "/" + key))
+                outputs.add(new String[]{bucket, key});
+        }
+        return outputs;
+    }
+
+    private void download(String bucket, String key, File file) {
+        try {
+            HeadObjectResponse head = s3Operations.headFile(bucket, key);
+            long size = head.contentLength();
+            String eTag = head.eTag();
+
+            if (file.exists() && file.length() == size && matchesETag(file, eTag)) {
+                skipped.incrementAndGet();
+                return;
+            }
+
+            File parent = file.getParentFile();
+            if (parent != null)
+                Files.createDirectories(parent.toPath());
+
+            // A .part file longer than the object belongs to an older version
+            File part = new File(file.getPath() + ".part");
+            long offset = part.exists() && part.length() < size ? part.length() : 0;
+
+            if (size == 0) {
+                new FileOutputStream(part).close();
+            } else if (offset < size) {
+                try (InputStream in = s3Operations.getFileStream(bucket, key, offset, eTag);
+                     OutputStream out = new FileOutputStream(part, offset > 0)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int bytesRead;
+                    while ((bytesRead = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, bytesRead);
+                        bytes.addAndGet(bytesRead);
+                    }
+                }
+            }
+
+            Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            downloaded.incrementAndGet();
+        } catch (Exception e) {
+            // The .part file stays, the next run continues from it
+            System.err.println("Failed to download s3://" + bucket + "/" + key + ": " + e.getMessage());
+            failed.incrementAndGet();
+        }
+    }
+
+    // Multipart ETags are not an MD5 of the content, for those the size has to do
+    private boolean matchesETag(File file, String eTag) throws IOException {
+        String expected = eTag == null ? "" : eTag.replace("\"", "");
+        if (expected.isEmpty() || expected.contains("-"))
+            return true;
+
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                md5.update(buffer, 0, bytesRead);
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md5.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString().equals(expected);
+        } catch (NoSuchAlgorithmException e) {
+            return true;
+        }
+    }
+
+    // Output keys are the PDF URLs plus an extension, turn them into a relative path
+    private static String localPath(String key) {
+        return key.replace("://", "/").replace(':', '_').replace('?', '_').replace('*', '_')
+                .replaceAll("/+", "/").replaceAll("(^|/)\\.\\.(?=/|$)", "$1__");
+    }
+
+    private static String unescapeHTML(String text) {
+        return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+                .replace("&#39;", "'").replace("&amp;", "&");
+    }
+
+}
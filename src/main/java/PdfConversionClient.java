@@ -0,0 +1,580 @@
+import operations.ArtifactStore;
+import operations.EC2Operations;
+import operations.InstanceRegistry;
+import operations.S3Operations;
+import operations.SQSOperations;
+import operations.Tracer;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.ec2.model.Tag;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Submits many jobs to the manager over one bucket and one pair of queues. A single listener thread
+// long-polls mlQueue and routes progress reports and summaries to the job they belong to
+public class PdfConversionClient implements AutoCloseable {
+
+    // Called for every progress report of the manager, in order. chunk holds the summary rows
+    // completed since the previous report and is empty if there are none
+    public interface ProgressCallback {
+        void onProgress(int completed, int failed, int total, String chunk);
+    }
+
+    // Settings of the client as one local app of the manager, they apply to all its jobs
+    public static class Config {
+        private int docsPerWorker = 10;
+        private String priority = "normal";
+        // As the manager without these arguments: only the final summary and no pre-flight
+        private int progressIntervalSeconds = 0;
+        private boolean preflight = false;
+        // An existing bucket to reuse across clients, null for a new one that close() deletes
+        private String bucket = null;
+        private String jarsDirectory = "jars";
+        // Where the jars are stored by content hash, shared by all clients and never deleted. Bucket
+        // names are global, so null picks artifacts-<random> once and keeps the name in ARTIFACT_BUCKET_FILE
+        private String artifactBucket = null;
+        // The manager and its workers dump their metrics to s3://<metricsBucket>/metrics/ every minute.
+        // null for the artifact bucket, empty for no dumps
+        private String metricsBucket = null;
+        // Inputs larger than this are uploaded as shards of this size that the manager starts on
+        // while the rest is still uploading
+        private long shardSizeBytes = 64L * 1024 * 1024;
+        private int uploadParallelism = 4;
+        // Spans of this client go to this file, and the manager and workers write theirs next to their
+        // metrics dumps. null for no tracing
+        private String traceFile = null;
+
+        public Config docsPerWorker(int docsPerWorker) {
+            this.docsPerWorker = docsPerWorker;
+            return this;
+        }
+
+        public Config priority(String priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        public Config progressIntervalSeconds(int progressIntervalSeconds) {
+            this.progressIntervalSeconds = progressIntervalSeconds;
+            return this;
+        }
+
+        public Config preflight(boolean preflight) {
+            this.preflight = preflight;
+            return this;
+        }
+
+        public Config bucket(String bucket) {
+            this.bucket = bucket;
+            return this;
+        }
+
+        public Config jarsDirectory(String jarsDirectory) {
+            this.jarsDirectory = jarsDirectory;
+            return this;
+        }
+
+        public Config artifactBucket(String artifactBucket) {
+            this.artifactBucket = artifactBucket;
+            return this;
+        }
+
+        public Config metricsBucket(String metricsBucket) {
+            this.metricsBucket = metricsBucket;
+            return this;
+        }
+
+        public Config shardSizeBytes(long shardSizeBytes) {
+            this.shardSizeBytes = shardSizeBytes;
+            return this;
+        }
+
+        public Config uploadParallelism(int uploadParallelism) {
+            this.uploadParallelism = uploadParallelism;
+            return this;
+        }
+
+        public Config traceFile(String traceFile) {
+            this.traceFile = traceFile;
+            return this;
+        }
+    }
+
+    public static class JobOptions {
+        // Where the summary is written, <outputPath>.html. null to only get the summary key
+        private String outputPath = null;
+        private ProgressCallback progress = null;
+
+        public JobOptions outputPath(String outputPath) {
+            this.outputPath = outputPath;
+            return this;
+        }
+
+        public JobOptions progress(ProgressCallback progress) {
+            this.progress = progress;
+            return this;
+        }
+    }
+
+    public static class JobResult {
+        private final String jobId;
+        private final String summaryKey;
+        private final File output;
+        private final int completed;
+        private final int failed;
+
+        private JobResult(String jobId, String summaryKey, File output, int completed, int failed) {
+            this.jobId = jobId;
+            this.summaryKey = summaryKey;
+            this.output = output;
+            this.completed = completed;
+            this.failed = failed;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public String getSummaryKey() {
+            return summaryKey;
+        }
+
+        // null if the job had no output path
+        public File getOutput() {
+            return output;
+        }
+
+        // As of the last progress report, 0 if progress reports are off
+        public int getCompleted() {
+            return completed;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+    }
+
+    private final S3Operations s3Operations;
+    private final SQSOperations sqsOperations;
+    private final EC2Operations ec2Operations;
+    private final InstanceRegistry instanceRegistry;
+
+    private final Config config;
+    private final String bucket;
+    private final boolean ownsBucket;
+
+    private final String lmQueue = "lm-queue-" + UUID.randomUUID();
+    private final String mlQueue = "ml-queue-" + UUID.randomUUID();
+    private final String registerQueue = "r-queue-31415926535";
+
+    // Long polling wait of the listener, and how often it makes sure there still is a manager
+    private static final int WAIT_TIME_SECONDS = 20;
+    private static final long MANAGER_CHECK_INTERVAL_MILLIS = 60 * 1000;
+
+    private static final Tracer TRACER = new Tracer("local-app");
+
+    // The default artifact bucket of this user, created on first use
+    private static final File ARTIFACT_BUCKET_FILE = new File(System.getProperty("user.home"), ".pdf-conversion/artifact-bucket");
+
+    private final Map<String, Submission> submissions = new ConcurrentHashMap<>();
+    private final Thread listener;
+    private volatile boolean running = true;
+    private boolean managerActivated = false;
+    private String artifactBucket;
+    // s3:// URLs of the jars in the artifact bucket, "-" for an archive that was not built
+    private String managerJar;
+    private String managerJsa;
+    private String workerJar;
+    private String workerJsa;
+    // Instance of the manager this client started or registered with, to notice a replacement
+    private volatile String managerInstance;
+    private final CompletableFuture<Void> terminated = new CompletableFuture<>();
+    private volatile boolean terminating = false;
+
+    public PdfConversionClient(Config config) {
+        this(config, new S3Operations(Region.US_EAST_1), new SQSOperations(Region.US_EAST_1), new EC2Operations(Region.US_EAST_1));
+    }
+
+    // With other operations than the AWS ones, the load test passes local stand-ins
+    public PdfConversionClient(Config config, S3Operations s3Operations, SQSOperations sqsOperations, EC2Operations ec2Operations) {
+        this.s3Operations = s3Operations;
+        this.sqsOperations = sqsOperations;
+        this.ec2Operations = ec2Operations;
+        // The listener checks for the manager once a minute, describe at most every 10 seconds
+        this.instanceRegistry = new InstanceRegistry(ec2Operations, 10 * 1000);
+
+        this.config = config;
+        this.ownsBucket = config.bucket == null;
+        this.bucket = ownsBucket ? "bucket-" + UUID.randomUUID() : config.bucket;
+        if (config.traceFile != null)
+            Tracer.exportTo(config.traceFile);
+
+        if (!s3Operations.doesBucketExist(bucket))
+            s3Operations.createBucket(bucket);
+        sqsOperations.createQueue(lmQueue);
+        sqsOperations.createQueue(mlQueue);
+        if (Objects.equals(sqsOperations.getQueueUrl(registerQueue), ""))
+            sqsOperations.createQueue(registerQueue);
+
+        this.listener = new Thread(this::listen, "ml-listener");
+        this.listener.setDaemon(true);
+        this.listener.start();
+    }
+
+    // Uploads the input and queues it, the future completes once the summary is there
+    public CompletableFuture<JobResult> submit(File input, JobOptions options) {
+        activateManager();
+
+        // A fresh key per submission, submitting the same file again is a new job
+        String key = "inputs/" + UUID.randomUUID() + "/" + input.getName();
+        String body = "s3://" + bucket + "/" + key;
+
+        // The manager derives the job id from the message the same way, or from the input url of a shard
+        String jobId = UUID.nameUUIDFromBytes(body.getBytes(StandardCharsets.UTF_8)).toString();
+        Submission submission = new Submission(jobId, options);
+
+        // The root of the job's trace, the manager continues it from the input message
+        Tracer.Span upload = TRACER.start("upload_input", submission.span.context())
+                .tag("bytes", String.valueOf(input.length()));
+        try (Tracer.Scope scope = upload.makeCurrent()) {
+            if (input.length() <= config.shardSizeBytes) {
+                s3Operations.uploadFile(bucket, key, input);
+                submissions.put(jobId, submission);
+                sqsOperations.sendMessage(lmQueue, body);
+                return submission.result;
+            }
+
+            // The first shards are announced before the last ones are uploaded
+            submissions.put(jobId, submission);
+            try {
+                new InputSharder(s3Operations, sqsOperations, bucket, lmQueue, config.shardSizeBytes, config.uploadParallelism)
+                        .upload(input, key);
+            } catch (IOException e) {
+                submissions.remove(jobId);
+                submission.span.tag("outcome", "upload failed").end();
+                submission.result.completeExceptionally(e);
+            }
+            return submission.result;
+        } finally {
+            upload.end();
+        }
+    }
+
+    // Asks the manager to finish the queued jobs and shut down, completes once it is gone
+    public CompletableFuture<Void> terminateManager() {
+        terminating = true;
+        sqsOperations.sendMessage(lmQueue, "terminate");
+        return terminated;
+    }
+
+    // Fetches every output the job's summary links to into directory, see OutputDownloader
+    public void downloadOutputs(JobResult result, File directory, int parallelism) throws IOException {
+        if (result.getOutput() == null)
+            throw new IllegalArgumentException("Job " + result.getJobId() + " has no local summary to read the outputs from");
+        new OutputDownloader(s3Operations, parallelism).downloadAll(result.getOutput(), directory);
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    // Stops listening and fails the jobs still waiting. Deletes the queues, and the bucket if the client created it
+    @Override
+    public void close() {
+        running = false;
+        try { listener.join(); }
+        catch (InterruptedException e) { e.printStackTrace(); }
+
+        for (Submission submission : submissions.values()) {
+            submission.span.tag("outcome", "closed").end();
+            submission.result.completeExceptionally(new IllegalStateException("Client closed before job " + submission.jobId + " finished"));
+        }
+        submissions.clear();
+
+        if (ownsBucket)
+            s3Operations.deleteBucket(bucket);
+        sqsOperations.deleteQueue(lmQueue);
+        sqsOperations.deleteQueue(mlQueue);
+        Tracer.stopExport();
+    }
+
+    // Uploads the jars and starts a manager, or registers with the running one. Once per client
+    private synchronized void activateManager() {
+        if (managerActivated)
+            return;
+
+        // Unchanged jars are already stored under their hash and not uploaded again
+        artifactBucket = config.artifactBucket != null ? config.artifactBucket : defaultArtifactBucket();
+        ArtifactStore artifactStore = new ArtifactStore(s3Operations, artifactBucket);
+        managerJar = artifactStore.publish(new File(config.jarsDirectory, "manager.jar"));
+        workerJar = artifactStore.publish(new File(config.jarsDirectory, "worker.jar"));
+        // AppCDS archives are optional, they exist only if the jars were built with the cds profile
+        managerJsa = publishIfExists(artifactStore, "manager.jsa");
+        workerJsa = publishIfExists(artifactStore, "worker.jsa");
+
+        startManager();
+        managerActivated = true;
+    }
+
+    private static synchronized String defaultArtifactBucket() {
+        try {
+            if (ARTIFACT_BUCKET_FILE.exists()) {
+                String name = new String(Files.readAllBytes(ARTIFACT_BUCKET_FILE.toPath()), StandardCharsets.UTF_8).trim();
+                if (!name.isEmpty())
+                    return name;
+            }
+            String name = "artifacts-" + UUID.randomUUID();
+            Files.createDirectories(ARTIFACT_BUCKET_FILE.getParentFile().toPath());
+            Files.write(ARTIFACT_BUCKET_FILE.toPath(), name.getBytes(StandardCharsets.UTF_8));
+            System.out.println("Artifact bucket " + name + " noted in " + ARTIFACT_BUCKET_FILE);
+            return name;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not keep the artifact bucket name in " + ARTIFACT_BUCKET_FILE, e);
+        }
+    }
+
+    private String publishIfExists(ArtifactStore artifactStore, String name) {
+        File file = new File(config.jarsDirectory, name);
+        return file.exists() ? artifactStore.publish(file) : "-";
+    }
+
+    private void startManager() {
+        String metricsBucket = config.metricsBucket == null ? artifactBucket : config.metricsBucket;
+        String properties = (metricsBucket.isEmpty() ? "" : "-Dmetrics.bucket=" + metricsBucket + " ")
+                + (config.traceFile == null ? "" : "-Dtrace.file=traces.json ");
+        // The archive is only used if manager.jar has the mtime it was dumped with, see the cds profile
+        String script = "#!/bin/bash\necho \"Downloading manager.jar\"\ncd /home/ec2-user\n"
+                + ArtifactStore.fetchScript(managerJar, "manager.jar")
+                + (managerJsa.equals("-") ? "" : "{\n" + ArtifactStore.fetchScript(managerJsa, "manager.jsa") + "} || true\n")
+                + String.format("touch -d @315532800 manager.jar\njava %s-Xshare:auto -XX:SharedArchiveFile=manager.jsa -jar manager.jar %d %s %s %s %s %d %b %s %s",
+                properties,
+                config.docsPerWorker, lmQueue, mlQueue, bucket, config.priority, config.progressIntervalSeconds, config.preflight,
+                workerJar, workerJsa);
+
+        instanceRegistry.invalidate();
+        String[] managersActive = instanceRegistry.getActiveInstancesWithTag("type", "manager");
+        if (managersActive.length > 0) {
+            System.out.println("Manager already active");
+            register(managersActive[0]);
+            return;
+        }
+        String[] started = instanceRegistry.runInstances(script, 1, 1,
+                Collections.singletonList(Tag.builder().key("type").value("manager").build()));
+        managerInstance = started.length > 0 ? started[0] : null;
+    }
+
+    // The manager keeps local apps in memory, one that another client started knows only that client
+    private void register(String manager) {
+        sqsOperations.sendMessage(registerQueue, String.format("manager;%d;%s;%s;%s;%s;%d;%b;%s;%s",
+                config.docsPerWorker, lmQueue, mlQueue, bucket, config.priority, config.progressIntervalSeconds, config.preflight,
+                workerJar, workerJsa));
+        managerInstance = manager;
+    }
+
+    private void listen() {
+        long lastManagerCheck = System.currentTimeMillis();
+        while (running) {
+            try {
+                List<Message> messages = sqsOperations.receiveMessages(mlQueue, WAIT_TIME_SECONDS);
+                for (Message message : messages) {
+                    route(message.body());
+                    sqsOperations.deleteMessage(mlQueue, message.receiptHandle());
+                }
+
+                boolean waiting = !submissions.isEmpty() || terminating;
+                if (waiting && System.currentTimeMillis() - lastManagerCheck > MANAGER_CHECK_INTERVAL_MILLIS) {
+                    checkManager();
+                    lastManagerCheck = System.currentTimeMillis();
+                }
+            } catch (Exception e) {
+                System.err.println("Listener error: " + e.getMessage());
+                try { Thread.sleep(1000); } catch (InterruptedException ie) { return; }
+            }
+        }
+    }
+
+    private void route(String body) {
+        if (body.equals("terminated")) {
+            System.out.println("Manager terminated");
+            terminated.complete(null);
+            return;
+        }
+
+        // progress\t<jobId>\t<seq>\t<completed>\t<failed>\t<total>\t<chunkKey or ->
+        if (body.startsWith("progress\t")) {
+            String[] parts = body.split("\t");
+            Submission submission = submissions.get(parts[1]);
+            if (submission != null)
+                submission.onReport(parts);
+            return;
+        }
+
+        // failed\t<jobId>\t<reason>, the manager gave up on the job and there is no summary
+        if (body.startsWith("failed\t")) {
+            String[] parts = body.split("\t", 3);
+            Submission submission = submissions.remove(parts[1]);
+            if (submission != null)
+                submission.fail(parts.length > 2 ? parts[2] : "unknown reason");
+            return;
+        }
+
+        // summary-<jobId>.html
+        if (body.startsWith("summary-") && body.endsWith(".html")) {
+            String jobId = body.substring("summary-".length(), body.length() - ".html".length());
+            Submission submission = submissions.remove(jobId);
+            if (submission != null)
+                submission.complete(body);
+            return;
+        }
+
+        System.out.println("Unexpected message on " + mlQueue + ": " + body);
+    }
+
+    private void checkManager() {
+        String[] managersActive = instanceRegistry.getActiveInstancesWithTag("type", "manager");
+        if (managersActive.length > 0) {
+            if (!Arrays.asList(managersActive).contains(managerInstance) && !terminating) {
+                // Another client replaced the manager, this one has to register with it to get its jobs resumed
+                System.out.println("Manager was replaced, registering with " + managersActive[0]);
+                register(managersActive[0]);
+                for (Submission submission : submissions.values()) {
+                    submission.restart();
+                }
+            }
+            return;
+        }
+
+        if (terminating) {
+            System.out.println("Manager terminated");
+            terminated.complete(null);
+            return;
+        }
+
+        // A new manager picks the jobs up from their checkpoints once their input messages are visible again.
+        // It numbers its reports from 0 and its first chunk repeats every restored row
+        System.out.println("Manager is gone, starting a new one");
+        startManager();
+        for (Submission submission : submissions.values()) {
+            submission.restart();
+        }
+    }
+
+    private String readFile(String key) {
+        try (InputStream in = s3Operations.getFileStream(bucket, key)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                out.write(buffer, 0, bytesRead);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "";
+        }
+    }
+
+    private class Submission {
+        private final String jobId;
+        private final JobOptions options;
+        private final CompletableFuture<JobResult> result = new CompletableFuture<>();
+        private final Tracer.Span span;
+
+        // mlQueue is not FIFO, reports are held back until the ones before them arrived
+        private final Map<Integer, String[]> reports = new HashMap<>();
+        private int nextSeq = 0;
+        // Set by the first chunk written, which starts the output file over. Report 0 is often empty
+        private boolean outputStarted = false;
+        private int completed = 0;
+        private int failed = 0;
+
+        private Submission(String jobId, JobOptions options) {
+            this.jobId = jobId;
+            this.options = options;
+            this.span = TRACER.start("job", null).tag("job", jobId);
+        }
+
+        private File output() {
+            return options.outputPath == null ? null : new File(options.outputPath + ".html");
+        }
+
+        private synchronized void onReport(String[] parts) {
+            reports.put(Integer.parseInt(parts[2]), parts);
+
+            List<String> chunkKeys = new ArrayList<>();
+            while (reports.containsKey(nextSeq)) {
+                String[] report = reports.remove(nextSeq);
+                String chunk = "";
+                if (!report[6].equals("-")) {
+                    chunk = readFile(report[6]);
+                    if (output() != null && !chunk.isEmpty()) {
+                        appendToOutput(chunk, !outputStarted);
+                        outputStarted = true;
+                    }
+                    chunkKeys.add(report[6]);
+                }
+
+                completed = Integer.parseInt(report[3]);
+                failed = Integer.parseInt(report[4]);
+                if (options.progress != null)
+                    options.progress.onProgress(completed, failed, Integer.parseInt(report[5]), chunk);
+                nextSeq++;
+            }
+            if (!chunkKeys.isEmpty())
+                s3Operations.deleteFiles(bucket, chunkKeys);
+        }
+
+        private synchronized void restart() {
+            reports.clear();
+            nextSeq = 0;
+            outputStarted = false;
+        }
+
+        // The complete summary replaces whatever the chunks put into the output file
+        private void complete(String summaryKey) {
+            File output = output();
+            if (output != null) {
+                Tracer.Span download = TRACER.start("gather_results", span.context());
+                s3Operations.downloadFile(bucket, summaryKey, output);
+                download.end();
+            }
+            span.end();
+            result.complete(new JobResult(jobId, summaryKey, output, completed, failed));
+        }
+
+        private void fail(String reason) {
+            span.tag("outcome", "failed").end();
+            result.completeExceptionally(new IllegalStateException("Job " + jobId + " failed in the manager: " + reason));
+        }
+
+        private void appendToOutput(String chunk, boolean first) {
+            // The first chunk starts the file over, an output left by an earlier run is replaced
+            try (OutputStream out = new FileOutputStream(output(), !first)) {
+                if (first)
+                    out.write("<html><body>\n".getBytes(StandardCharsets.UTF_8));
+                out.write(chunk.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
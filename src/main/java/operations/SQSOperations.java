@@ -4,24 +4,34 @@ import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.sqs.SqsClient;
 import software.amazon.awssdk.services.sqs.model.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SQSOperations {
 
     private final SqsClient sqsClient;
 
+    // Queue URLs do not change while the queue exists, every operation used to look its queue up again
+    private final Map<String, String> queueUrls = new ConcurrentHashMap<>();
+
     public SQSOperations(Region region) {
-        this.sqsClient = SqsClient.builder().region(region).build();
+        this.sqsClient = SqsClient.builder().region(region).overrideConfiguration(Metrics.clientConfiguration()).build();
     }
 
     // Queue operations
 
     public String createQueue(String name) {
         System.out.println("Creating queue " + name);
-        return sqsClient.createQueue(
+        String queueUrl = sqsClient.createQueue(
                 builder -> builder.queueName(name)
         ).queueUrl();
+        queueUrls.put(name, queueUrl);
+        return queueUrl;
     }
 
     public void deleteQueue(String queueName) {
@@ -34,32 +44,101 @@ public class SQSOperations {
         sqsClient.deleteQueue(
                 builder -> builder.queueUrl(queueUrl)
         );
+        queueUrls.remove(queueName);
     }
 
     public String getQueueUrl(String queueName) {
+        String cached = queueUrls.get(queueName);
+        if (cached != null)
+            return cached;
+
         System.out.println("Getting queue URL for " + queueName);
         try {
-            return sqsClient.getQueueUrl(
+            String queueUrl = sqsClient.getQueueUrl(
                     builder -> builder.queueName(queueName)
             ).queueUrl();
+            queueUrls.put(queueName, queueUrl);
+            return queueUrl;
         } catch (Exception e) {
             System.out.println("Queue " + queueName + " does not exist");
             return "";
         }
     }
 
+    public Map<QueueAttributeName, String> getQueueAttributes(String queueName, QueueAttributeName... attributes) {
+        String queueUrl = getQueueUrl(queueName);
+        if (queueUrl.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        return sqsClient.getQueueAttributes(
+                builder -> builder.queueUrl(queueUrl).attributeNames(Arrays.asList(attributes))
+        ).attributes();
+    }
+
     // Push message
 
+    // The message carries the span current on this thread, see Tracer
     public void sendMessage(String queueUrl, String message) {
+        sendMessage(queueUrl, message, Tracer.current());
+    }
+
+    private void sendMessage(String queueUrl, String message, Tracer.Context context) {
         System.out.println("Sending message '" + message + "' to " + queueUrl);
-        sqsClient.sendMessage(
-                builder -> builder.queueUrl(queueUrl).messageBody(message)
-        );
+        sqsClient.sendMessage(builder -> {
+            builder.queueUrl(queueUrl).messageBody(message);
+            if (context != null)
+                builder.messageAttributes(Tracer.attributes(context));
+        });
+    }
+
+    public void sendMessages(String queueName, List<String> messages) {
+        sendMessages(queueName, messages, Collections.nCopies(messages.size(), Tracer.current()));
+    }
+
+    // Sends the messages in batches of 10, the most SQS accepts in one call. contexts has the span
+    // each message carries, null for none
+    public void sendMessages(String queueName, List<String> messages, List<Tracer.Context> contexts) {
+        System.out.println("Sending " + messages.size() + " messages to " + queueName);
+        String queueUrl = getQueueUrl(queueName);
+        if (queueUrl.isEmpty()) {
+            return;
+        }
+
+        for (int from = 0; from < messages.size(); from += 10) {
+            List<String> batch = messages.subList(from, Math.min(from + 10, messages.size()));
+            List<Tracer.Context> batchContexts = contexts.subList(from, from + batch.size());
+            List<SendMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                SendMessageBatchRequestEntry.Builder entry = SendMessageBatchRequestEntry.builder().id(String.valueOf(i)).messageBody(batch.get(i));
+                if (batchContexts.get(i) != null)
+                    entry.messageAttributes(Tracer.attributes(batchContexts.get(i)));
+                entries.add(entry.build());
+            }
+
+            SendMessageBatchResponse response = sqsClient.sendMessageBatch(
+                    builder -> builder.queueUrl(queueUrl).entries(entries)
+            );
+
+            // Entries can fail on their own, resend those one by one
+            for (BatchResultErrorEntry failed : response.failed()) {
+                System.out.println("Batch entry failed (" + failed.code() + "), resending");
+                Metrics.counter("sqs_batch_entries_resent_total", "Batch entries SQS rejected and that were sent again on their own",
+                        "code", failed.code()).inc();
+                int index = Integer.parseInt(failed.id());
+                sendMessage(queueUrl, batch.get(index), batchContexts.get(index));
+            }
+        }
     }
 
     // Pop message
 
     public List<Message> receiveMessages(String queueName) {
+        return receiveMessages(queueName, 0);
+    }
+
+    // Long polling: waits up to waitTimeSeconds (max 20) for a message instead of returning empty right away
+    public List<Message> receiveMessages(String queueName, int waitTimeSeconds) {
         System.out.println("Receiving messages from " + queueName);
         String queueUrl = getQueueUrl(queueName);
         if (queueUrl.isEmpty()) {
@@ -67,21 +146,29 @@ public class SQSOperations {
         }
 
         List<Message> response = sqsClient.receiveMessage(
-                builder -> builder.queueUrl(queueUrl).maxNumberOfMessages(10)
+                builder -> builder.queueUrl(queueUrl).maxNumberOfMessages(10).waitTimeSeconds(waitTimeSeconds)
+                        .messageAttributeNames(Collections.singletonList(Tracer.ATTRIBUTE))
         ).messages();
 
         return response;
     }
 
     public Message receiveMessage(String queueName) {
+        return receiveMessage(queueName, 0);
+    }
+
+    public Message receiveMessage(String queueName, int waitTimeSeconds) {
         System.out.println("Receiving message from " + queueName);
         String queueUrl = getQueueUrl(queueName);
         if (queueUrl.isEmpty()) {
             return null;
         }
 
+        // SentTimestamp tells the receiver how long the message waited in the queue
         List<Message> response = sqsClient.receiveMessage(
-                builder -> builder.queueUrl(queueUrl).maxNumberOfMessages(1)
+                builder -> builder.queueUrl(queueUrl).maxNumberOfMessages(1).waitTimeSeconds(waitTimeSeconds)
+                        .messageSystemAttributeNames(Collections.singletonList(MessageSystemAttributeName.SENT_TIMESTAMP))
+                        .messageAttributeNames(Collections.singletonList(Tracer.ATTRIBUTE))
         ).messages();
 
         return response.isEmpty() ? null : response.get(0);